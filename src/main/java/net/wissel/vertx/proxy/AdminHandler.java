@@ -0,0 +1,156 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Requests to the admin listener:
+ * <ul>
+ * <li>GET /stats: live cache and filter statistics</li>
+ * <li>POST /purge: drops entries, the body is a JsonObject with one of
+ * <code>url</code>, <code>prefix</code> or <code>regex</code></li>
+ * <li>POST /preload: requests the URLs in the body, a JsonArray, through the
+ * proxy</li>
+ * </ul>
+ * Everything answers with Json
+ *
+ * @author swissel
+ *
+ */
+public class AdminHandler implements Handler<HttpServerRequest> {
+
+    private final ResponseCache  cache;
+    private final CacheWarmer    warmer;
+    private final FilterSelector filterSelector;
+
+    /**
+     * @param cache
+     *            the proxy's cache
+     * @param warmer
+     *            runs the preloads
+     * @param filterSelector
+     *            the proxy's filters
+     */
+    public AdminHandler(final ResponseCache cache, final CacheWarmer warmer, final FilterSelector filterSelector) {
+        this.cache = cache;
+        this.warmer = warmer;
+        this.filterSelector = filterSelector;
+    }
+
+    @Override
+    public void handle(final HttpServerRequest request) {
+        switch (request.path()) {
+            case "/stats":
+                if (this.allowed(request, HttpMethod.GET)) {
+                    this.reply(request, 200, this.cache.stats().put("filters", this.filterSelector.stats()));
+                }
+                break;
+            case "/purge":
+                if (this.allowed(request, HttpMethod.POST)) {
+                    request.bodyHandler(body -> this.purge(request, body));
+                }
+                break;
+            case "/preload":
+                if (this.allowed(request, HttpMethod.POST)) {
+                    request.bodyHandler(body -> this.preload(request, body));
+                }
+                break;
+            default:
+                this.reply(request, 404, new JsonObject().put("error", "Unknown path " + request.path()));
+        }
+    }
+
+    private boolean allowed(final HttpServerRequest request, final HttpMethod method) {
+        if (request.method() == method) {
+            return true;
+        }
+        request.response().putHeader(HttpHeaders.ALLOW, method.name());
+        this.reply(request, 405, new JsonObject().put("error", "Use " + method.name()));
+        return false;
+    }
+
+    private void purge(final HttpServerRequest request, final Buffer body) {
+        final JsonObject what;
+        try {
+            what = body.toJsonObject();
+        } catch (final DecodeException | ClassCastException e) {
+            this.reply(request, 400, new JsonObject().put("error", "Body must be a Json object"));
+            return;
+        }
+        final long purged;
+        if (what.getValue("url") instanceof String) {
+            purged = this.cache.purge(what.getString("url"));
+        } else if (what.getValue("prefix") instanceof String) {
+            purged = this.cache.purgePrefix(what.getString("prefix"));
+        } else if (what.getValue("regex") instanceof String) {
+            try {
+                purged = this.cache.purgeMatching(Pattern.compile(what.getString("regex")));
+            } catch (final PatternSyntaxException e) {
+                this.reply(request, 400, new JsonObject().put("error", e.getMessage()));
+                return;
+            }
+        } else {
+            this.reply(request, 400, new JsonObject().put("error", "Needs url, prefix or regex"));
+            return;
+        }
+        this.reply(request, 200, new JsonObject().put("purged", purged));
+    }
+
+    private void preload(final HttpServerRequest request, final Buffer body) {
+        final List<String> urls = new ArrayList<>();
+        try {
+            final JsonArray list = body.toJsonArray();
+            list.forEach(url -> urls.add(String.valueOf(url)));
+        } catch (final DecodeException | ClassCastException e) {
+            this.reply(request, 400, new JsonObject().put("error", "Body must be a Json array of URLs"));
+            return;
+        }
+        this.warmer.warm(urls, result -> {
+            if (result.succeeded()) {
+                this.reply(request, 200, result.result());
+            } else {
+                this.reply(request, 500, new JsonObject().put("error", result.cause().getMessage()));
+            }
+        });
+    }
+
+    private void reply(final HttpServerRequest request, final int status, final JsonObject body) {
+        request.response()
+                .setStatusCode(status)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+                .end(body.encodePrettily());
+    }
+
+}
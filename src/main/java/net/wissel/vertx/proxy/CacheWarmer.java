@@ -0,0 +1,246 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Fills the cache by requesting URLs from the proxy's own listener, so they
+ * take the same way as client requests: same keys, filters and cache rules.
+ * A fixed number of requests runs at the same time, the target isn't flooded
+ *
+ * @author swissel
+ *
+ */
+public class CacheWarmer {
+
+    /**
+     * Request line and status of a common or combined log format line
+     */
+    private static final Pattern LOG_LINE = Pattern.compile("\"(GET|HEAD) (\\S+) HTTP/[0-9.]+\" (\\d{3})\\b");
+
+    private final HttpClient client;
+    private final int        port;
+    private final int        concurrency;
+    private final String     host;
+    private final MultiMap   headers = MultiMap.caseInsensitiveMultiMap();
+
+    /**
+     * @param client
+     *            client for the requests to the proxy
+     * @param port
+     *            port the proxy listens on, on localhost
+     * @param config
+     *            JsonObject with optional <code>concurrency</code>,
+     *            <code>host</code> sent along with paths and
+     *            <code>headers</code> sent with every request
+     */
+    public CacheWarmer(final HttpClient client, final int port, final JsonObject config) {
+        this.client = client;
+        this.port = port;
+        this.concurrency = Math.max(1, config.getInteger("concurrency", 4));
+        this.host = config.getString("host");
+        config.getJsonObject("headers", new JsonObject())
+                .forEach(header -> this.headers.add(header.getKey(), String.valueOf(header.getValue())));
+    }
+
+    /**
+     * Reads the URLs worth warming from a file, hottest first. Each line is
+     * either an access log line in common or combined log format, counted
+     * when it is a GET or HEAD that got a 200 or 304, or a plain URL or path.
+     * Other lines and lines starting with # are skipped. URLs are ranked by
+     * how often they occur, URLs occurring equally often keep the file order
+     *
+     * @param file
+     *            URL list or access log
+     * @param maxUrls
+     *            how many URLs to return at most
+     * @return the URLs
+     * @throws IOException
+     *             when the file can't be read
+     */
+    public static List<String> hottest(final Path file, final int maxUrls) throws IOException {
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String url = CacheWarmer.urlOf(line.trim());
+                if (url != null) {
+                    counts.merge(url, 1, Integer::sum);
+                }
+            }
+        }
+        final List<Map.Entry<String, Integer>> ranked = new ArrayList<>(counts.entrySet());
+        // Stable, equal counts stay in file order
+        ranked.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; (i < ranked.size()) && (i < maxUrls); i++) {
+            result.add(ranked.get(i).getKey());
+        }
+        return result;
+    }
+
+    private static String urlOf(final String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        final Matcher logLine = CacheWarmer.LOG_LINE.matcher(line);
+        if (logLine.find()) {
+            final String status = logLine.group(3);
+            return ("200".equals(status) || "304".equals(status)) ? logLine.group(2) : null;
+        }
+        final boolean url = line.startsWith("/") || line.startsWith("http://") || line.startsWith("https://");
+        return (url && (line.indexOf(' ') < 0)) ? line : null;
+    }
+
+    /**
+     * Tracks one run over a URL list
+     */
+    private class Run {
+        final List<String>                     urls;
+        final Handler<AsyncResult<JsonObject>> handler;
+        int                                    next    = 0;
+        int                                    running = 0;
+        long                                   ok      = 0;
+        long                                   failed  = 0;
+
+        Run(final List<String> urls, final Handler<AsyncResult<JsonObject>> handler) {
+            this.urls = urls;
+            this.handler = handler;
+        }
+
+        void done(final boolean succeeded) {
+            if (succeeded) {
+                this.ok++;
+            } else {
+                this.failed++;
+            }
+            this.running--;
+            this.startNext();
+        }
+
+        void startNext() {
+            while ((this.running < CacheWarmer.this.concurrency) && (this.next < this.urls.size())) {
+                final String url = this.urls.get(this.next++);
+                if (CacheWarmer.this.request(this, url)) {
+                    this.running++;
+                } else {
+                    this.failed++;
+                }
+            }
+            if (this.running == 0) {
+                this.handler.handle(Future.succeededFuture(new JsonObject()
+                        .put("requested", this.urls.size())
+                        .put("ok", this.ok)
+                        .put("failed", this.failed)));
+            }
+        }
+    }
+
+    /**
+     * Requests all URLs, with a GET each. Absolute URLs send their host along
+     * as <code>Host</code> header, so the entries get the keys clients using
+     * that name will look for. Paths go out with the configured
+     * <code>host</code>, <code>localhost</code> without
+     *
+     * @param urls
+     *            absolute URLs or paths starting with /
+     * @param handler
+     *            gets the number of URLs requested, ok (status below 400) and
+     *            failed
+     */
+    public void warm(final List<String> urls, final Handler<AsyncResult<JsonObject>> handler) {
+        new Run(urls, handler).startNext();
+    }
+
+    /**
+     * @return false when the URL can't be requested
+     */
+    private boolean request(final Run run, final String url) {
+        // Errors can still come after the response ended
+        final Handler<Boolean> done = new Handler<Boolean>() {
+            private boolean called = false;
+
+            @Override
+            public void handle(final Boolean succeeded) {
+                if (!this.called) {
+                    this.called = true;
+                    run.done(succeeded);
+                }
+            }
+        };
+        String host = this.host;
+        String path = url;
+        if (!url.startsWith("/")) {
+            try {
+                final URI uri = new URI(url);
+                host = uri.getRawAuthority();
+                path = (uri.getRawPath() == null) || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null) {
+                    path = path + "?" + uri.getRawQuery();
+                }
+            } catch (final URISyntaxException e) {
+                host = null;
+            }
+            if (host == null) {
+                return false;
+            }
+        }
+        final HttpClientRequest request = this.client.get(this.port, "localhost", path, response -> {
+            response.exceptionHandler(err -> done.handle(false));
+            // The body only matters to the cache
+            response.handler(buff -> {
+                // Dropped
+            });
+            response.endHandler(v -> done.handle(response.statusCode() < 400));
+        });
+        request.headers().addAll(this.headers);
+        if (host != null) {
+            request.headers().set(HttpHeaders.HOST, host);
+        }
+        request.exceptionHandler(err -> done.handle(false));
+        request.end();
+        return true;
+    }
+
+}
@@ -22,6 +22,9 @@
 package net.wissel.vertx.proxy;
 
 import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -31,19 +34,20 @@ import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import io.vertx.core.Future;
 import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.streams.ReadStream;
-import io.vertx.core.streams.WriteStream;
+import net.wissel.vertx.proxy.filters.AbstractFilter;
+import net.wissel.vertx.proxy.filters.FilterWorker;
 
 /**
  * @author stw Class that contains all Filters that can be applied to the
  *         returned content from a call to the server
+ *         The filter list is read only once constructed, so all listener
+ *         instances share one selector. Each filter class gets its own
+ *         bounded worker pool
  *
  */
 public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter> {
@@ -54,6 +58,7 @@ public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter
         final public boolean            regex;
         final public String             className;
         final public Collection<JsonObject> subfilters = new ArrayList<>();
+        final public String             fingerprint;
 
         public FilterConfig(JsonObject filter) {
             this.mimeType = filter.getString("mimeType").toLowerCase();
@@ -62,6 +67,7 @@ public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter
             this.className = filter.getString("class");
             final JsonArray subfilters = filter.getJsonArray("subfilters");
             this.addSubfilters(subfilters);
+            this.fingerprint = FilterSelector.fingerprint(filter);
         }
 
         public void addSubfilters(JsonArray subfilters) {
@@ -73,19 +79,55 @@ public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter
         }
     }
 
+    /**
+     * Hash of a filter definition, changes whenever the definition changes
+     *
+     * @param filter
+     *            the definition from proxy.json
+     * @return hex encoded SHA-256
+     */
+    static String fingerprint(final JsonObject filter) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final StringBuilder result = new StringBuilder();
+            for (final byte b : digest.digest(filter.encode().getBytes(StandardCharsets.UTF_8))) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     private final Map<String, Map<String, FilterConfig>> filterList = new HashMap<>();
+    private final Map<String, FilterWorker> workers = new HashMap<>();
     private final Vertx vertx;
 
     public FilterSelector(final Vertx vertx, JsonObject config) {
         this.vertx = vertx;
+        JsonObject workerConfig = config.getJsonObject("filterWorkers", new JsonObject());
+        JsonObject defaultWorker = workerConfig.getJsonObject("default", new JsonObject());
         JsonArray filterNames = config.getJsonArray("filters");
         filterNames.forEach(o -> {
             final JsonObject filter = (JsonObject) o;
             FilterConfig fc = new FilterConfig(filter);
             this.addFilter(fc);
+            this.workers.computeIfAbsent(fc.className, className -> new FilterWorker(vertx, className,
+                    defaultWorker.copy().mergeIn(workerConfig.getJsonObject(className, new JsonObject()))));
         });
     }
 
+    /**
+     * @return the statistics of the worker of each filter class, keyed by
+     *         class name
+     */
+    public JsonObject stats() {
+        JsonObject result = new JsonObject();
+        this.workers.forEach((className, worker) -> result.put(className, worker.stats()));
+        return result;
+    }
+
     /**
      * Adds the list of filters based on mime-type and URL URL can be * for any
      * or a regEx
@@ -123,26 +165,7 @@ public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter
     }
 
     public ProxyFilter getEmptyProxyFilter() {
-        return new ProxyFilter() {
-
-            @Override
-            public Future<ReadStream<Buffer>> apply(ReadStream<Buffer> t) {
-                return Future.succeededFuture(t);
-            }
-
-            @Override
-            public Future<Void> end(WriteStream<Buffer> result) {
-                return Future.succeededFuture();
-            }
-
-            /**
-             * @see net.wissel.vertx.proxy.ProxyFilter#addSubfilters(java.util.Collection)
-             */
-            @Override
-            public void addSubfilters(Collection<JsonObject> subfilters) {
-                // No action required
-            }
-        };
+        return ProxyFilter.passThrough();
     }
 
     /**
@@ -187,6 +210,11 @@ public class FilterSelector implements Function<HttpRequestResponse, ProxyFilter
                         Constructor constructor = Class.forName(fc.className).getConstructor(Vertx.class, Boolean.TYPE);
                         result = (ProxyFilter) constructor.newInstance(this.vertx, isChunked);
                         result.addSubfilters(fc.subfilters);
+                        if (result instanceof AbstractFilter) {
+                            // Output only depends on content and configuration
+                            ((AbstractFilter) result).setFingerprint(fc.fingerprint);
+                            ((AbstractFilter) result).setWorker(this.workers.get(fc.className));
+                        }
                         break;
                     } catch (Exception e) {
                         e.printStackTrace();
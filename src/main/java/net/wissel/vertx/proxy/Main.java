@@ -21,20 +21,24 @@
  */
 package net.wissel.vertx.proxy;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
 import io.vertx.config.ConfigRetriever;
 import io.vertx.config.ConfigRetrieverOptions;
 import io.vertx.config.ConfigStoreOptions;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
-import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.core.net.ProxyOptions;
-import io.vertx.core.net.ProxyType;
+import net.wissel.vertx.proxy.impl.ResponseCacheImpl;
 
 /**
  * @author swissel
@@ -52,6 +56,8 @@ public class Main extends AbstractVerticle {
 
 	private JsonObject params;
 	private Integer port;
+	private ResponseCacheImpl cache;
+	private FilterSelector filterSelector;
 	private final Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
 	/**
@@ -80,43 +86,45 @@ public class Main extends AbstractVerticle {
 		});
 	}
 
+	/**
+	 * Deploys the listeners, one per core unless proxy.json sets
+	 * <code>instances</code>. They share the port, the cache and the filters.
+	 * Admin listener, snapshot and warm-up exist once
+	 */
 	private void launchProxy(Future<Void> startFuture) {
-	    
-	    HttpClientOptions clientOptions = new HttpClientOptions().setMaxInitialLineLength(10000).setLogActivity(true)
-                .setTryUseCompression(true);
-	    
-	    // Does the proxy talk to a proxy?
-	    this.addLocalProxy(clientOptions);
-	    
-	    if (this.params.getBoolean("useSSL", true)) {
-	        // Ugly to switch off trust and host check
-	        // however since we connect to one host only - bearable
-	        clientOptions.setSsl(true).setTrustAll(true).setVerifyHost(false) ;
-	        this.logger.info("Using SSL for backend connection");
-	    }
-	    
-	    final HttpClient client = vertx.createHttpClient(clientOptions);
-		final SfdcHttpProxy proxy = SfdcHttpProxy
-		        .reverseProxy(client)
-		        .target(this.params.getInteger("targetPort", 80), this.params.getString("targetHost","www.spiegel.de"));
-		proxy.filterSelector(new FilterSelector(this.getVertx(), this.params));
-		
-		HttpServerOptions serverOptions = new HttpServerOptions()
-		        .setPort(this.port)
-		        .setMaxInitialLineLength(10000)
-				.setLogActivity(true)
-				.setCompressionSupported(true);
+		// One cache and one set of filters for all instances
+		this.cache = ResponseCacheImpl.shared(this.vertx, this.params.getJsonObject("cache", new JsonObject()));
+		this.filterSelector = new FilterSelector(this.getVertx(), this.params);
+		int instances = this.params.getInteger("instances", Runtime.getRuntime().availableProcessors());
+		if (this.params.getBoolean("useSSL", true)) {
+			this.logger.info("Using SSL for backend connection");
+		}
+		boolean preferNative = this.params.getJsonObject("network", new JsonObject())
+				.getBoolean("preferNativeTransport", false);
+		if (vertx.isNativeTransportEnabled()) {
+			this.logger.info("Transport: native");
+		} else if (preferNative) {
+			this.logger.warn("Transport: NIO, the native transport isn't available on this platform");
+		} else {
+			this.logger.info("Transport: NIO");
+		}
 
-		final HttpServer proxyServer = vertx.createHttpServer(serverOptions).requestHandler(req -> {
-			this.logger.info(req.path());
-			proxy.handle(req);
-		});
-		
-		
-		proxyServer.listen(ar -> {
+		DeploymentOptions options = new DeploymentOptions().setInstances(instances).setConfig(this.params);
+		vertx.deployVerticle(() -> new ProxyVerticle(this.cache, this.filterSelector), options, ar -> {
 			if (ar.succeeded()) {
-				this.logger.info("Proxy server started on " + this.port);
+				this.logger.info("Proxy server started on " + this.port + " with " + instances + " instances");
 				startFuture.complete();
+				this.launchAdmin();
+				// Warm up from the last shutdown without holding up the start
+				this.cache.load(loaded -> {
+					if (loaded.succeeded()) {
+						this.logger.info("Cache snapshot loaded " + loaded.result() + " entries");
+					} else {
+						this.logger.error(loaded.cause().getMessage(), loaded.cause());
+					}
+					// What the snapshot brought back is a hit for the warm-up
+					this.warmUp();
+				});
 			} else {
 				ar.cause().printStackTrace();
 				startFuture.fail(ar.cause());
@@ -126,55 +134,79 @@ public class Main extends AbstractVerticle {
 	}
 
 	/**
-	 * Adds a local proxy when useProxy = true
-	 * or an environment variable HTTP_PROXY is found
-	 * 
-	 * @param clientOptions to be updated options
+	 * Requests the hottest URLs of the URL list or access log configured in
+	 * the warmup section through the proxy, so a fresh instance doesn't start
+	 * with a cold cache. Runs in the background, the proxy serves meanwhile
 	 */
-	private void addLocalProxy(HttpClientOptions clientOptions) {
-		boolean needToAdd = false;
-		String host = "localhost";
-		int port = 8080;
-		String environmentProxy = System.getenv("HTTP_PROXY");
-		boolean configProxy = this.config().getBoolean("useProxy", false);
-		
-		if (environmentProxy != null) {
-			needToAdd = true;
-			// Strip protocol and slashes etc if provided
-			String[] hostPortFragments = environmentProxy.split("/");
-			for (int i = 0; i < hostPortFragments.length; i++) {
-				// looking for the part with the : but not http: or https:
-				String curFrag = hostPortFragments[i];
-				if (!curFrag.startsWith("https:") 
-					&& !curFrag.startsWith("http:")
-					&& curFrag.indexOf(":") > 0) {
-					String[] hostPortSplit = curFrag.split(":");
-					host = hostPortSplit[0];
-					try {
-					port = (hostPortSplit.length > 1)
-							? Integer.valueOf(hostPortSplit[1])
-							: port;
-					} catch (Throwable t) {
-						this.logger.error(t);
-					}
-					
-					break;
-				}
+	private void warmUp() {
+		JsonObject warmupConfig = this.params.getJsonObject("warmup");
+		if ((warmupConfig == null) || (warmupConfig.getString("file") == null)) {
+			return;
+		}
+		Path file = Paths.get(warmupConfig.getString("file"));
+		int maxUrls = warmupConfig.getInteger("maxUrls", 1000);
+		vertx.<List<String>>executeBlocking(fut -> {
+			try {
+				fut.complete(CacheWarmer.hottest(file, maxUrls));
+			} catch (IOException e) {
+				fut.fail(e);
 			}
-		} else {
-			needToAdd = configProxy;
-			host = this.params.getString("proxyHost", "localhost");
-			port = this.params.getInteger("proxyPort", 8080);
+		}, false, read -> {
+			if (read.failed()) {
+				this.logger.error("Warm-up skipped, can't read " + file, read.cause());
+				return;
+			}
+			HttpClient warmClient = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true));
+			new CacheWarmer(warmClient, this.port, warmupConfig).warm(read.result(), warmed -> {
+				this.logger.info("Cache warm-up done " + warmed.result().encode());
+				warmClient.close();
+			});
+		});
+	}
+
+	/**
+	 * Starts the admin listener when proxy.json has an admin section with a
+	 * port. It binds to localhost unless configured otherwise
+	 */
+	private void launchAdmin() {
+		JsonObject adminConfig = this.params.getJsonObject("admin");
+		if ((adminConfig == null) || (adminConfig.getInteger("port") == null)) {
+			return;
 		}
-		
-		if (needToAdd) {
-	        ProxyOptions proxyOptions = new ProxyOptions()
-	                .setHost(host)
-	                .setPort(port)
-	                .setType(ProxyType.HTTP);
-	        clientOptions.setProxyOptions(proxyOptions);
-	        this.logger.info("Local proxy ["+host+"] added on port "+port);
-        }
+		HttpClient warmClient = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true));
+		CacheWarmer warmer = new CacheWarmer(warmClient, this.port,
+				adminConfig.getJsonObject("preload", new JsonObject()));
+		HttpServerOptions adminOptions = new HttpServerOptions()
+				.setPort(adminConfig.getInteger("port"))
+				.setHost(adminConfig.getString("host", "127.0.0.1"));
+		vertx.createHttpServer(adminOptions).requestHandler(new AdminHandler(this.cache, warmer, this.filterSelector)).listen(ar -> {
+			if (ar.succeeded()) {
+				this.logger.info("Admin server started on " + adminOptions.getPort());
+			} else {
+				this.logger.error(ar.cause().getMessage(), ar.cause());
+			}
+		});
+	}
+
+	/**
+	 * Writes the cache snapshot before the proxy goes down
+	 *
+	 * @see io.vertx.core.AbstractVerticle#stop(io.vertx.core.Future)
+	 */
+	@Override
+	public void stop(Future<Void> stopFuture) throws Exception {
+		if (this.cache == null) {
+			stopFuture.complete();
+			return;
+		}
+		this.cache.save(saved -> {
+			if (saved.succeeded()) {
+				this.logger.info("Cache snapshot saved " + saved.result() + " entries");
+			} else {
+				this.logger.error(saved.cause().getMessage(), saved.cause());
+			}
+			stopFuture.complete();
+		});
 	}
 
 }
@@ -51,4 +51,49 @@ public interface ProxyFilter extends Function<ReadStream<Buffer>, Future<ReadStr
 	 */
     public void addSubfilters(Collection<JsonObject> subfilters);
 
+    /**
+     * @return true when the filter hands the body on unchanged, so it can
+     *         be sent without going through the filter
+     */
+    public default boolean isPassThrough() {
+        return false;
+    }
+
+    /**
+     * @return identifies the filter chain and its configuration, so the
+     *         filtered output can be cached. Null when the output can't be
+     *         cached
+     */
+    public default String fingerprint() {
+        return null;
+    }
+
+    /**
+     * @return a filter handing the body on unchanged
+     */
+    public static ProxyFilter passThrough() {
+        return new ProxyFilter() {
+
+            @Override
+            public Future<ReadStream<Buffer>> apply(ReadStream<Buffer> t) {
+                return Future.succeededFuture(t);
+            }
+
+            @Override
+            public Future<Void> end(WriteStream<Buffer> result) {
+                return Future.succeededFuture();
+            }
+
+            @Override
+            public void addSubfilters(Collection<JsonObject> subfilters) {
+                // No action required
+            }
+
+            @Override
+            public boolean isPassThrough() {
+                return true;
+            }
+        };
+    }
+
 }
@@ -0,0 +1,50 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import io.vertx.core.Launcher;
+import io.vertx.core.VertxOptions;
+
+/**
+ * Entry point of the fat jar. Starts the Main-Verticle like the stock Vert.x
+ * launcher, with the transport settings of proxy.json applied to the Vert.x
+ * instance first, as {@link Runner} does when started from the IDE
+ *
+ * @author swissel
+ *
+ */
+public class ProxyLauncher extends Launcher {
+
+    /**
+     * @param args
+     *            Vert.x launcher command line
+     */
+    public static void main(final String[] args) {
+        new ProxyLauncher().dispatch(args);
+    }
+
+    @Override
+    public void beforeStartingVertx(final VertxOptions options) {
+        Runner.applyNetwork(options);
+    }
+
+}
@@ -9,12 +9,16 @@
  ********************************************************************************/
 package net.wissel.vertx.proxy;
 
+import java.util.function.Function;
+
 import io.vertx.codegen.annotations.Fluent;
 import io.vertx.codegen.annotations.VertxGen;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.streams.ReadStream;
 
 /**
  * @author <a href="mailto:julien@julienviet.com">Julien Viet</a>
@@ -48,9 +52,25 @@ public interface ProxyResponse {
 	 */
 	void send(Handler<AsyncResult<Void>> completionHandler);
 
-	// @Fluent
-	// ProxyResponse bodyFilter(Function<ReadStream<Buffer>, ReadStream<Buffer>>
-	// filter);
+	/**
+	 * Tee stage applied to the raw backend body before the content filters run,
+	 * e.g. to collect the body for the cache while it streams to the client
+	 *
+	 * @param filter
+	 *            function wrapping the backend stream
+	 */
+	@Fluent
+	ProxyResponse bodyFilter(Function<ReadStream<Buffer>, ReadStream<Buffer>> filter);
+
+	/**
+	 * Content filter to use instead of the one the proxy selects, e.g. a pass
+	 * through filter for a body that has been filtered already
+	 *
+	 * @param filter
+	 *            the filter, null to let the proxy select
+	 */
+	@Fluent
+	ProxyResponse contentFilter(ProxyFilter filter);
 
 	/**
 	 * Set the proxy response to use the {@code response}, this will update the
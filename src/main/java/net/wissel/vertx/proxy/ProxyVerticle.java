@@ -0,0 +1,205 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.ProxyOptions;
+import io.vertx.core.net.ProxyType;
+import io.vertx.core.net.TCPSSLOptions;
+import net.wissel.vertx.proxy.impl.ResponseCacheImpl;
+
+/**
+ * One listener of the proxy, deployed by {@link Main} once per core. The
+ * instances share the port, Vert.x hands new connections to them in turn, as
+ * well as the cache and the filter selector. Each has its own backend client,
+ * running on its own event loop
+ *
+ * @author swissel
+ *
+ */
+public class ProxyVerticle extends AbstractVerticle {
+
+    private final ResponseCacheImpl cache;
+    private final FilterSelector    filterSelector;
+    private final Logger            logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * @param cache
+     *            the cache all instances share
+     * @param filterSelector
+     *            the filters all instances share
+     */
+    public ProxyVerticle(final ResponseCacheImpl cache, final FilterSelector filterSelector) {
+        this.cache = cache;
+        this.filterSelector = filterSelector;
+    }
+
+    /**
+     * Applies the socket settings of the <code>network</code> section,
+     * unset ones keep the Vert.x defaults. TCP_FASTOPEN, TCP_QUICKACK and
+     * TCP_CORK only take effect with the native transport
+     *
+     * @param network
+     *            the network section of proxy.json
+     * @param options
+     *            server or client options to update
+     */
+    static void tune(final JsonObject network, final TCPSSLOptions options) {
+        if (network.getBoolean("tcpNoDelay") != null) {
+            options.setTcpNoDelay(network.getBoolean("tcpNoDelay"));
+        }
+        if (network.getBoolean("tcpFastOpen") != null) {
+            options.setTcpFastOpen(network.getBoolean("tcpFastOpen"));
+        }
+        if (network.getBoolean("tcpQuickAck") != null) {
+            options.setTcpQuickAck(network.getBoolean("tcpQuickAck"));
+        }
+        if (network.getBoolean("tcpCork") != null) {
+            options.setTcpCork(network.getBoolean("tcpCork"));
+        }
+        if (network.getBoolean("reusePort") != null) {
+            options.setReusePort(network.getBoolean("reusePort"));
+        }
+        if (network.getInteger("sendBufferSize") != null) {
+            options.setSendBufferSize(network.getInteger("sendBufferSize"));
+        }
+        if (network.getInteger("receiveBufferSize") != null) {
+            options.setReceiveBufferSize(network.getInteger("receiveBufferSize"));
+        }
+        if ((options instanceof NetServerOptions) && (network.getInteger("acceptBacklog") != null)) {
+            ((NetServerOptions) options).setAcceptBacklog(network.getInteger("acceptBacklog"));
+        }
+    }
+
+    /**
+     * Reads proxy.json from the deployment config
+     *
+     * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
+     */
+    @Override
+    public void start(final Future<Void> startFuture) throws Exception {
+        final JsonObject params = this.config();
+        final JsonObject network = params.getJsonObject("network", new JsonObject());
+        final HttpClientOptions clientOptions = new HttpClientOptions().setMaxInitialLineLength(10000)
+                .setLogActivity(true)
+                .setTryUseCompression(true);
+
+        // Does the proxy talk to a proxy?
+        this.addLocalProxy(params, clientOptions);
+
+        if (params.getBoolean("useSSL", true)) {
+            // Ugly to switch off trust and host check
+            // however since we connect to one host only - bearable
+            clientOptions.setSsl(true).setTrustAll(true).setVerifyHost(false);
+        }
+
+        ProxyVerticle.tune(network.getJsonObject("client", network), clientOptions);
+        final HttpClient client = this.vertx.createHttpClient(clientOptions);
+        final SfdcHttpProxy proxy = SfdcHttpProxy
+                .reverseProxy(this.vertx, client, this.cache)
+                .target(params.getInteger("targetPort", 80), params.getString("targetHost", "www.spiegel.de"));
+        proxy.filterSelector(this.filterSelector);
+
+        final HttpServerOptions serverOptions = new HttpServerOptions()
+                .setPort(params.getInteger("port"))
+                .setMaxInitialLineLength(10000)
+                .setLogActivity(true)
+                .setCompressionSupported(true);
+        ProxyVerticle.tune(network, serverOptions);
+
+        final HttpServer proxyServer = this.vertx.createHttpServer(serverOptions).requestHandler(req -> {
+            this.logger.info(req.path());
+            proxy.handle(req);
+        });
+
+        proxyServer.listen(ar -> {
+            if (ar.succeeded()) {
+                startFuture.complete();
+            } else {
+                startFuture.fail(ar.cause());
+            }
+        });
+    }
+
+    /**
+     * Adds a local proxy when useProxy = true or an environment variable
+     * HTTP_PROXY is found
+     *
+     * @param params
+     *            proxy.json
+     * @param clientOptions
+     *            to be updated options
+     */
+    private void addLocalProxy(final JsonObject params, final HttpClientOptions clientOptions) {
+        boolean needToAdd = false;
+        String host = "localhost";
+        int port = 8080;
+        final String environmentProxy = System.getenv("HTTP_PROXY");
+
+        if (environmentProxy != null) {
+            needToAdd = true;
+            // Strip protocol and slashes etc if provided
+            final String[] hostPortFragments = environmentProxy.split("/");
+            for (final String curFrag : hostPortFragments) {
+                // looking for the part with the : but not http: or https:
+                if (!curFrag.startsWith("https:")
+                        && !curFrag.startsWith("http:")
+                        && (curFrag.indexOf(":") > 0)) {
+                    final String[] hostPortSplit = curFrag.split(":");
+                    host = hostPortSplit[0];
+                    try {
+                        port = (hostPortSplit.length > 1)
+                                ? Integer.valueOf(hostPortSplit[1])
+                                : port;
+                    } catch (final Throwable t) {
+                        this.logger.error(t);
+                    }
+
+                    break;
+                }
+            }
+        } else {
+            needToAdd = params.getBoolean("useProxy", false);
+            host = params.getString("proxyHost", "localhost");
+            port = params.getInteger("proxyPort", 8080);
+        }
+
+        if (needToAdd) {
+            final ProxyOptions proxyOptions = new ProxyOptions()
+                    .setHost(host)
+                    .setPort(port)
+                    .setType(ProxyType.HTTP);
+            clientOptions.setProxyOptions(proxyOptions);
+            this.logger.info("Local proxy [" + host + "] added on port " + port);
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import java.util.regex.Pattern;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import net.wissel.vertx.proxy.impl.ResponseCacheImpl;
+
+/**
+ * Cache for upstream responses, bounded by the byte size of the cached
+ * bodies. Admission and eviction are frequency aware (W-TinyLFU), so one-hit
+ * wonders don't push out the popular resources
+ *
+ * @author swissel
+ *
+ */
+public interface ResponseCache {
+
+    /**
+     * Default byte budget when none is configured: 64 MB
+     */
+    long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Creates a cache from the <code>cache</code> section of proxy.json
+     *
+     * @param vertx
+     *            the Vert.x instance, runs the disk tier's IO
+     * @param config
+     *            JsonObject with optional <code>maxBytes</code>
+     * @return a new cache instance
+     */
+    static ResponseCache create(final Vertx vertx, final JsonObject config) {
+        return new ResponseCacheImpl(vertx, config);
+    }
+
+    /**
+     * The cache all verticle instances of a Vert.x instance share. The first
+     * call creates it from its configuration, later calls get the same cache
+     * and their configuration is ignored. Lookups and updates are safe from
+     * any event loop, so the instances see one logical cache and one byte
+     * budget. The snapshot is loaded once and written by one instance
+     *
+     * @param vertx
+     *            the Vert.x instance
+     * @param config
+     *            JsonObject with the <code>cache</code> settings
+     * @return the shared cache
+     */
+    static ResponseCache shared(final Vertx vertx, final JsonObject config) {
+        return ResponseCacheImpl.shared(vertx, config);
+    }
+
+    /**
+     * @return the number of cached entries (estimated)
+     */
+    long entries();
+
+    /**
+     * @return the bytes currently accounted against the budget
+     */
+    long bytes();
+
+    /**
+     * @return bytes in the disk tier's segment files, 0 without disk tier
+     */
+    long diskBytes();
+
+    /**
+     * @return the number of entries in the disk tier
+     */
+    long diskEntries();
+
+    /**
+     * Drops all entries
+     */
+    void clear();
+
+    /**
+     * Drops the entries of one URL, all its variants and filtered output
+     *
+     * @param url
+     *            absolute URL as the proxy sees it, the query gets normalized
+     *            like for a request
+     * @return the number of entries dropped
+     */
+    long purge(String url);
+
+    /**
+     * Drops the entries of all URLs starting with a prefix
+     *
+     * @param prefix
+     *            start of the normalized absolute URL
+     * @return the number of entries dropped
+     */
+    long purgePrefix(String prefix);
+
+    /**
+     * Drops the entries of all URLs a regular expression is found in
+     *
+     * @param pattern
+     *            searched in the normalized absolute URL
+     * @return the number of entries dropped
+     */
+    long purgeMatching(Pattern pattern);
+
+    /**
+     * @return live statistics: entries, bytes, request outcomes and eviction
+     *         causes per tier
+     */
+    JsonObject stats();
+
+    /**
+     * Reads the snapshot configured as <code>snapshot</code> back into the
+     * cache, skipping stale entries. Runs on a worker thread
+     *
+     * @param handler
+     *            gets the number of entries loaded, 0 without snapshot
+     */
+    void load(Handler<AsyncResult<Long>> handler);
+
+    /**
+     * Writes the cache content to the snapshot configured as
+     * <code>snapshot</code>. Runs on a worker thread
+     *
+     * @param handler
+     *            gets the number of entries written, 0 without snapshot
+     */
+    void save(Handler<AsyncResult<Long>> handler);
+
+}
@@ -26,6 +26,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import io.vertx.core.DeploymentOptions;
@@ -66,14 +68,42 @@ public class Runner {
 		if (Runner.isDebug(debugMode, customValues)) {
 			options.setBlockedThreadCheckInterval(1000 * 60 * 60);
 		}
+		Runner.applyNetwork(options);
 
 		final Vertx vertx = Vertx.vertx(options);
+		// Undeploy on SIGTERM, so verticles can finish their work
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			final CountDownLatch closed = new CountDownLatch(1);
+			vertx.close(ar -> closed.countDown());
+			try {
+				closed.await(30, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
 		runner.accept(vertx);
 	}
 	
+	/**
+	 * The transport is picked when Vert.x starts, before proxy.json is read by
+	 * the verticle, so its <code>network</code> section is read here too
+	 *
+	 * @param options
+	 *            options of the Vert.x instance about to start
+	 */
+	static void applyNetwork(final VertxOptions options) {
+		final JsonObject network = Runner.loadJson("proxy.json").getJsonObject("network", new JsonObject());
+		if (network.containsKey("preferNativeTransport")) {
+			options.setPreferNativeTransport(network.getBoolean("preferNativeTransport"));
+		}
+	}
+
 	public static JsonObject loadVerticleConfigOptions() {
+        return Runner.loadJson("config.json");
+    }
+
+	private static JsonObject loadJson(final String configFileName) {
         JsonObject customValues = new JsonObject();
-        String configFileName = "config.json";
         InputStream in = null;
         try {
             File configFile = new File(configFileName);
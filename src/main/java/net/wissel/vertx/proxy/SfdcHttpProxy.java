@@ -16,9 +16,12 @@ import io.vertx.codegen.annotations.Fluent;
 import io.vertx.codegen.annotations.VertxGen;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.SocketAddress;
+import net.wissel.vertx.proxy.impl.ResponseCacheImpl;
 import net.wissel.vertx.proxy.impl.SfdcHttpProxyImpl;
 
 /**
@@ -27,8 +30,12 @@ import net.wissel.vertx.proxy.impl.SfdcHttpProxyImpl;
 @VertxGen
 public interface SfdcHttpProxy extends Handler<HttpServerRequest> {
 
-    static SfdcHttpProxy reverseProxy(final HttpClient client) {
-        return new SfdcHttpProxyImpl(client);
+    static SfdcHttpProxy reverseProxy(final Vertx vertx, final HttpClient client) {
+        return SfdcHttpProxy.reverseProxy(vertx, client, ResponseCacheImpl.shared(vertx, new JsonObject()));
+    }
+
+    static SfdcHttpProxy reverseProxy(final Vertx vertx, final HttpClient client, final ResponseCacheImpl cache) {
+        return new SfdcHttpProxyImpl(vertx, client, cache);
     }
 
     @Fluent
@@ -21,6 +21,10 @@
  */
 package net.wissel.vertx.proxy.filters;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
@@ -44,6 +48,8 @@ public abstract class AbstractFilter implements ProxyFilter {
     protected final boolean isChunked;
     private Buffer          internalBuffer = null;
     private final Vertx     vertx;
+    private String          fingerprint    = null;
+    private FilterWorker    worker         = null;
 
     public AbstractFilter(final Vertx vertx, final boolean isChunked) {
         this.isChunked = isChunked;
@@ -58,43 +64,61 @@ public abstract class AbstractFilter implements ProxyFilter {
 
         final ReadStream<Buffer> result = new ReadStream<Buffer>() {
 
+            // Buffers of a non chunked body get filtered one at a time, in
+            // order. The filter may finish later on a worker
+            private final Deque<Buffer> pending = new ArrayDeque<>();
+            private Handler<Buffer>     dataHandler;
+            private Handler<Void>       endHandler;
+            private Handler<Throwable>  exceptionHandler;
+            private boolean             running;
+            private boolean             paused;
+            private boolean             ended;
+            private boolean             failed;
+
             @Override
             public ReadStream<Buffer> endHandler(final Handler<Void> handler) {
-                raw.endHandler(handler);
+                this.endHandler = handler;
+                raw.endHandler((handler == null) ? null : v -> {
+                    this.ended = true;
+                    this.next();
+                });
                 return this;
             }
 
             @Override
             public ReadStream<Buffer> exceptionHandler(final Handler<Throwable> handler) {
+                this.exceptionHandler = handler;
                 raw.exceptionHandler(handler);
                 return this;
             }
 
             @Override
             public ReadStream<Buffer> handler(final Handler<Buffer> handler) {
-                final Handler<Buffer> innerHandler = new Handler<Buffer>() {
-
-                    @Override
-                    public void handle(final Buffer buffer) {
-                        final Buffer innerBuffer = AbstractFilter.this.filterBuffer(buffer);
-                        if (innerBuffer.length() > 0) {
-                            handler.handle(innerBuffer);
-                        }
+                this.dataHandler = handler;
+                raw.handler((handler == null) ? null : buffer -> {
+                    if (AbstractFilter.this.isChunked) {
+                        AbstractFilter.this.collectJunk(buffer);
+                    } else {
+                        this.pending.add(buffer);
+                        this.next();
                     }
-                };
-                raw.handler(innerHandler);
+                });
                 return this;
             }
 
             @Override
             public ReadStream<Buffer> pause() {
+                this.paused = true;
                 raw.pause();
                 return this;
             }
 
             @Override
             public ReadStream<Buffer> resume() {
-                raw.resume();
+                this.paused = false;
+                if (!this.running) {
+                    raw.resume();
+                }
                 return this;
             }
 
@@ -103,6 +127,45 @@ public abstract class AbstractFilter implements ProxyFilter {
                 raw.fetch(amount);
                 return this;
             }
+
+            private void next() {
+                if (this.running || this.failed) {
+                    return;
+                }
+                final Buffer buffer = this.pending.poll();
+                if (buffer == null) {
+                    if (this.ended && (this.endHandler != null)) {
+                        this.endHandler.handle(null);
+                    }
+                    return;
+                }
+                this.running = true;
+                final Future<Buffer> filtered = AbstractFilter.this.processBufferResult(buffer);
+                final boolean offloaded = !filtered.isComplete();
+                if (offloaded) {
+                    // No more buffers until this one is done
+                    raw.pause();
+                }
+                filtered.setHandler(ar -> {
+                    this.running = false;
+                    if (ar.failed()) {
+                        // E.g. the pool of the filter class is full
+                        this.failed = true;
+                        this.pending.clear();
+                        if (this.exceptionHandler != null) {
+                            this.exceptionHandler.handle(ar.cause());
+                        }
+                        return;
+                    }
+                    if ((ar.result().length() > 0) && (this.dataHandler != null)) {
+                        this.dataHandler.handle(ar.result());
+                    }
+                    if (offloaded && !this.paused) {
+                        raw.resume();
+                    }
+                    this.next();
+                });
+            }
         };
 
         return Future.succeededFuture(result);
@@ -126,6 +189,33 @@ public abstract class AbstractFilter implements ProxyFilter {
         return endgame;
     }
 
+    /**
+     * Filters transform the body based on content and configuration only,
+     * so their output can be cached under the fingerprint of their definition
+     *
+     * @see net.wissel.vertx.proxy.ProxyFilter#fingerprint()
+     */
+    @Override
+    public String fingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * @param fingerprint
+     *            hash of the filter definition
+     */
+    public void setFingerprint(final String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @param worker
+     *            pool of the filter class, blocking work runs there
+     */
+    public void setWorker(final FilterWorker worker) {
+        this.worker = worker;
+    }
+
     /**
      * @return the vertx
      */
@@ -141,24 +231,6 @@ public abstract class AbstractFilter implements ProxyFilter {
         }
     }
 
-    /**
-     *
-     * @param incomingBuffer
-     *            raw values from source
-     * @return a transformed buffer with new values
-     */
-    protected Buffer filterBuffer(final Buffer incomingBuffer) {
-        if (this.isChunked) {
-            this.collectJunk(incomingBuffer);
-            // Return an empty buffer
-            return Buffer.buffer();
-        } else {
-            // We wait for result to be available
-            // TODO: is that what we need?
-            return this.processBufferResult(incomingBuffer).result();
-        }
-    }
-
     /**
      * Function to call before internalBuffer is written to the result - needed
      * to deal with junked results
@@ -172,6 +244,24 @@ public abstract class AbstractFilter implements ProxyFilter {
 
     protected abstract Future<Buffer> processBufferResult(Buffer incomingBuffer);
 
+    /**
+     * Runs filter work on the event loop when the worker of the filter class
+     * expects this definition to be quick for a body of this size, else on its
+     * pool.
+     * Without a worker on the default worker pool. Runs are unordered
+     *
+     * @param bytes
+     *            size of the body
+     */
+    protected <T> void dispatch(final int bytes, final Handler<Future<T>> code,
+            final Handler<AsyncResult<T>> handler) {
+        if (this.worker == null) {
+            this.vertx.executeBlocking(code, false, handler);
+        } else {
+            this.worker.execute(this.fingerprint, bytes, code, handler);
+        }
+    }
+
     private void collectJunk(final Buffer incomingBuffer) {
         if (this.chunkCollector == null) {
             this.chunkCollector = Buffer.buffer(incomingBuffer.length() * 2);
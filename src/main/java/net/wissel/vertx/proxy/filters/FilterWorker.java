@@ -0,0 +1,235 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.filters;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Bounded worker pool of one filter class. Filter runs don't wait behind each
+ * other or behind other blocking code, they are unordered. When more than
+ * <code>size + maxQueue</code> runs are pending new ones fail right away with
+ * a {@link RejectedExecutionException}, the proxy answers those with 503.
+ * In <code>virtual</code> mode (Java 21 and later) every run gets its own
+ * virtual thread instead and <code>size</code> runs may be going at once.
+ * <p>
+ * Small bodies don't leave the event loop: the worker learns how long each
+ * filter definition takes per byte and runs bodies inline that it expects to
+ * finish within <code>inlineMicros</code>. Definitions of the same class can
+ * differ a lot in cost, so they are told apart by their fingerprint
+ *
+ * @author swissel
+ *
+ */
+public class FilterWorker {
+
+    /**
+     * Seconds clients are asked to wait after a rejection
+     */
+    public static final String RETRY_AFTER = "1";
+
+    /**
+     * @param err
+     *            cause of a failed filter run
+     * @return true when the run got rejected because the pool was full
+     */
+    public static boolean isRejected(final Throwable err) {
+        return err instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Moving average of the filter time per byte of one filter definition
+     */
+    private static final class Estimate {
+        // 0 until the first run
+        private volatile double nanosPerByte = 0;
+
+        private synchronized void learn(final int bytes, final long nanos) {
+            if (bytes <= 0) {
+                return;
+            }
+            final double sample = (double) nanos / bytes;
+            this.nanosPerByte = (this.nanosPerByte <= 0) ? sample : (0.9 * this.nanosPerByte) + (0.1 * sample);
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, null before
+     *         Java 21
+     */
+    static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private final Logger          logger  = LoggerFactory.getLogger(this.getClass());
+    private final Vertx           vertx;
+    private final String          name;
+    private final int             maxPending;
+    private final WorkerExecutor  executor;
+    private final ExecutorService virtualThreads;
+    private final AtomicInteger   pending = new AtomicInteger();
+    private final long            inlineNanos;
+    private final int             maxInlineBytes;
+    private final LongAdder       inline    = new LongAdder();
+    private final LongAdder       offloaded = new LongAdder();
+    private final LongAdder       rejected  = new LongAdder();
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+    /**
+     * @param vertx
+     *            the vertx instance
+     * @param className
+     *            the filter class, names the pool
+     * @param config
+     *            mode, size, maxQueue, inlineMicros and maxInlineBytes
+     */
+    public FilterWorker(final Vertx vertx, final String className, final JsonObject config) {
+        this.vertx = vertx;
+        this.inlineNanos = config.getLong("inlineMicros", 100L) * 1000L;
+        this.maxInlineBytes = config.getInteger("maxInlineBytes", 65536);
+        this.name = "proxy-filter-" + className.substring(className.lastIndexOf('.') + 1);
+        final boolean virtual = "virtual".equals(config.getString("mode", "pool"));
+        this.virtualThreads = virtual ? FilterWorker.virtualThreads() : null;
+        if (this.virtualThreads != null) {
+            this.maxPending = config.getInteger("size", 1024);
+            this.executor = null;
+        } else {
+            if (virtual) {
+                this.logger.warn(this.name + ": virtual threads need Java 21, using a worker pool");
+            }
+            final int size = config.getInteger("size", Runtime.getRuntime().availableProcessors());
+            this.maxPending = size + config.getInteger("maxQueue", 64);
+            this.executor = vertx.createSharedWorkerExecutor(this.name, size);
+        }
+    }
+
+    /**
+     * Runs filter code inline when the body is small enough, otherwise on the
+     * pool or a virtual thread
+     *
+     * @param fingerprint
+     *            fingerprint of the filter definition, null when it has none
+     * @param bytes
+     *            size of the body the code filters
+     * @param code
+     *            the filter work
+     * @param handler
+     *            gets the result on the calling context
+     */
+    public <T> void execute(final String fingerprint, final int bytes, final Handler<Future<T>> code,
+            final Handler<AsyncResult<T>> handler) {
+        final Estimate estimate = this.estimates.computeIfAbsent((fingerprint == null) ? "" : fingerprint,
+                f -> new Estimate());
+        final Handler<Future<T>> timed = result -> {
+            final long start = System.nanoTime();
+            code.handle(result);
+            estimate.learn(bytes, System.nanoTime() - start);
+        };
+        if (bytes <= this.inlineBytes(estimate)) {
+            this.inline.increment();
+            final Future<T> result = Future.future();
+            try {
+                timed.handle(result);
+            } catch (final Throwable t) {
+                result.tryFail(t);
+            }
+            result.setHandler(handler);
+            return;
+        }
+        if (this.pending.incrementAndGet() > this.maxPending) {
+            this.pending.decrementAndGet();
+            this.rejected.increment();
+            handler.handle(Future.failedFuture(new RejectedExecutionException(this.name + " is full")));
+            return;
+        }
+        this.offloaded.increment();
+        final Handler<AsyncResult<T>> done = result -> {
+            this.pending.decrementAndGet();
+            handler.handle(result);
+        };
+        if (this.virtualThreads == null) {
+            this.executor.executeBlocking(timed, false, done);
+            return;
+        }
+        // Same contract as executeBlocking: the result comes back on the
+        // caller's event loop
+        final Context context = this.vertx.getOrCreateContext();
+        this.virtualThreads.execute(() -> {
+            final Future<T> result = Future.future();
+            try {
+                timed.handle(result);
+            } catch (final Throwable t) {
+                result.tryFail(t);
+            }
+            result.setHandler(ar -> context.runOnContext(v -> done.handle(ar)));
+        });
+    }
+
+    /**
+     * @return how many runs went inline, offloaded and got rejected, and per
+     *         filter fingerprint the learned time per byte and the resulting
+     *         inline threshold
+     */
+    public JsonObject stats() {
+        final JsonObject estimates = new JsonObject();
+        this.estimates.forEach((fingerprint, estimate) -> estimates.put(fingerprint, new JsonObject()
+                .put("nanosPerByte", estimate.nanosPerByte)
+                .put("inlineBytes", this.inlineBytes(estimate))));
+        return new JsonObject()
+                .put("inline", this.inline.sum())
+                .put("offloaded", this.offloaded.sum())
+                .put("rejected", this.rejected.sum())
+                .put("pending", this.pending.get())
+                .put("estimates", estimates);
+    }
+
+    /**
+     * @return largest body that runs inline, 0 while nothing was measured
+     */
+    private int inlineBytes(final Estimate estimate) {
+        final double perByte = estimate.nanosPerByte;
+        if (perByte <= 0) {
+            return 0;
+        }
+        return (int) Math.min(this.maxInlineBytes, this.inlineNanos / perByte);
+    }
+
+}
@@ -66,9 +66,9 @@ public class HtmlFilter extends AbstractFilter {
 
         final Future<Buffer> futureResult = Future.future();
 
-        // Run in our own thread the actual filters working
+        // Run inline or on the worker pool of the filter class the actual filters working
         // on a Jsoup document to execute whatever we have in mind
-       this.getVertx().executeBlocking(future -> {
+        this.<Buffer>dispatch(incoming.length(), future -> {
             final Document doc = Jsoup.parse(incoming.toString());
             this.subfilters.forEach(sf -> {
                 sf.apply(doc);
@@ -77,8 +77,7 @@ public class HtmlFilter extends AbstractFilter {
             future.complete(b);
         }, result -> {
             if (result.succeeded()) {
-                final Buffer b = (Buffer) result.result();
-                futureResult.complete(b);
+                futureResult.complete(result.result());
             } else {
                 futureResult.fail(result.cause());
             }
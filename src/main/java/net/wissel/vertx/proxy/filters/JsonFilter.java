@@ -67,9 +67,9 @@ public class JsonFilter extends AbstractFilter {
     protected Future<Buffer> processBufferResult(final Buffer incoming) {
         final Future<Buffer> futureResult = Future.future();
 
-        // Run in our own thread the actual filters working
+        // Run inline or on the worker pool of the filter class the actual filters working
         // on a Jsoup document to execute whatever we have in mind
-        this.getVertx().executeBlocking(future -> {
+        this.<Buffer>dispatch(incoming.length(), future -> {
             final JsonObject json = this.getJsonObject(incoming);
             this.subfilters.forEach(sf -> {
                 sf.apply(json);
@@ -78,8 +78,7 @@ public class JsonFilter extends AbstractFilter {
             future.complete(b);
         }, result -> {
             if (result.succeeded()) {
-                final Buffer b = (Buffer) result.result();
-                futureResult.complete(b);
+                futureResult.complete(result.result());
             } else {
                 futureResult.fail(result.cause());
             }
@@ -0,0 +1,220 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Compresses cached bodies with gzip once when they are stored, so hits can
+ * send the stored bytes to clients accepting gzip and memory holds the
+ * smaller form
+ *
+ * @author swissel
+ *
+ */
+class BodyCompression {
+
+    static final String GZIP = "gzip";
+
+    /**
+     * Size of the chunks a body gets decompressed in
+     */
+    static final int CHUNK_BYTES = 65536;
+
+    private static final String[] DEFAULT_TYPES = { "text/", "application/json", "application/javascript",
+            "application/xml", "image/svg+xml" };
+
+    private final List<String> types = new ArrayList<>();
+    private final int          minBytes;
+    private final int          level;
+    private final boolean      offHeap;
+
+    BodyCompression(final JsonObject config, final boolean offHeap) {
+        this.minBytes = config.getInteger("minBytes", 1024);
+        this.level = config.getInteger("level", 6);
+        this.offHeap = offHeap;
+        final JsonArray typeConfig = config.getJsonArray("types");
+        if (typeConfig == null) {
+            for (final String type : BodyCompression.DEFAULT_TYPES) {
+                this.types.add(type);
+            }
+        } else {
+            typeConfig.forEach(type -> this.types.add(String.valueOf(type).toLowerCase(Locale.ROOT)));
+        }
+    }
+
+    /**
+     * @param acceptEncoding
+     *            the Accept-Encoding request header, may be null
+     * @return true when the client takes gzip: listed, or covered by * and
+     *         not excluded with q=0
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] params = part.split(";");
+            final String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (final NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (BodyCompression.GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                return accepted;
+            }
+            if ("*".equals(coding)) {
+                wildcard = accepted;
+            }
+        }
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    /**
+     * @param gzipped
+     *            a gzip body, must stay valid while the stream is read
+     * @return a stream of the decompressed body
+     * @throws IOException
+     *             when the gzip header is broken
+     */
+    static InputStream gunzip(final Buffer gzipped) throws IOException {
+        return new GZIPInputStream(new ByteBufInputStream(gzipped.getByteBuf()), 8192);
+    }
+
+    /**
+     * @param in
+     *            a decompressing stream
+     * @return the next chunk of up to {@link #CHUNK_BYTES}, null at the end
+     * @throws IOException
+     *             when the compressed data is broken
+     */
+    static Buffer read(final InputStream in) throws IOException {
+        final byte[] chunk = new byte[BodyCompression.CHUNK_BYTES];
+        int length = 0;
+        int read;
+        while ((length < chunk.length) && ((read = in.read(chunk, length, chunk.length - length)) > 0)) {
+            length += read;
+        }
+        return (length == 0) ? null : Buffer.buffer(Unpooled.wrappedBuffer(chunk, 0, length));
+    }
+
+    /**
+     * @param resource
+     *            a complete resource about to be cached
+     * @return true when compressing the body is worth a try: a 200 in one of
+     *         the configured types, large enough and not encoded already
+     */
+    boolean applies(final Resource resource) {
+        if ((resource.statusCode != 200) || resource.isEncoded() || !resource.isComplete()
+                || (resource.length() < this.minBytes)) {
+            return false;
+        }
+        final String contentEncoding = resource.headers.get(HttpHeaders.CONTENT_ENCODING);
+        if ((contentEncoding != null) && !"identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return false;
+        }
+        final String contentType = resource.headers.get(HttpHeaders.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.toLowerCase(Locale.ROOT);
+        return this.types.stream().anyMatch(type::startsWith);
+    }
+
+    /**
+     * Compresses a body, blocking
+     *
+     * @param body
+     *            the plain body, a reference must be held
+     * @return the gzip body, null when it isn't at least a tenth smaller
+     * @throws IOException
+     *             when compression fails
+     */
+    CachedBody gzip(final CachedBody body) throws IOException {
+        final CachedBody result = CachedBody.create(this.offHeap);
+        try {
+            final ByteBuf in = body.buffer().getByteBuf();
+            try (GZIPOutputStream out = new GZIPOutputStream(new BodyOutputStream(result), 8192) {
+                {
+                    this.def.setLevel(BodyCompression.this.level);
+                }
+            }) {
+                in.readBytes(out, in.readableBytes());
+            }
+        } catch (final IOException | RuntimeException e) {
+            result.release();
+            throw e;
+        }
+        if (result.length() > ((body.length() * 9L) / 10)) {
+            result.release();
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Feeds what the compressor writes into a cached body
+     */
+    private static class BodyOutputStream extends OutputStream {
+
+        private final CachedBody body;
+
+        BodyOutputStream(final CachedBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            this.body.append(Buffer.buffer(Unpooled.wrappedBuffer(b, off, len)));
+        }
+
+        @Override
+        public void write(final int b) {
+            this.body.append(Buffer.buffer(new byte[] { (byte) b }));
+        }
+
+    }
+
+}
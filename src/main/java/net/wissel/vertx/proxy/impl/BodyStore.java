@@ -0,0 +1,118 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed index of cached bodies. Entries for different URLs with
+ * byte identical bodies, e.g. ones that only differ in a cache buster, point
+ * to one {@link SharedBody}. The index holds no references itself, a body
+ * leaves it when the last entry using it lets go. The cache charges the bytes
+ * held here once, entries using a body only pay for their headers
+ *
+ * @author swissel
+ *
+ */
+class BodyStore {
+
+    private final Map<String, SharedBody> bodies = new ConcurrentHashMap<>();
+    private final AtomicLong              bytes  = new AtomicLong();
+
+    /**
+     * Hashes a body, blocking
+     *
+     * @param body
+     *            the body, a reference must be held
+     * @return hex encoded SHA-256 of the bytes
+     */
+    static String hash(final CachedBody body) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(body.buffer().getByteBuf().nioBuffer());
+            final StringBuilder result = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Makes a body available for sharing
+     *
+     * @param hash
+     *            the content address
+     * @param body
+     *            the body, the store takes over the reference
+     * @return the shared body holding that reference
+     */
+    SharedBody add(final String hash, final CachedBody body) {
+        final SharedBody shared = new SharedBody(this, hash, body);
+        this.bytes.addAndGet(shared.length());
+        this.bodies.put(hash, shared);
+        return shared;
+    }
+
+    /**
+     * @param hash
+     *            the content address
+     * @param length
+     *            length of the body, guards against a collision
+     * @return a new reference to the body with that address, null when there
+     *         is none
+     */
+    SharedBody lookup(final String hash, final int length) {
+        final SharedBody shared = this.bodies.get(hash);
+        return ((shared != null) && (shared.length() == length) && shared.tryRetain()) ? shared : null;
+    }
+
+    /**
+     * Called once per shared body, when its last reference went
+     */
+    void remove(final String hash, final SharedBody shared) {
+        this.bodies.remove(hash, shared);
+        this.bytes.addAndGet(-shared.length());
+    }
+
+    /**
+     * @return bytes of all bodies held
+     */
+    long bytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return the number of distinct bodies held
+     */
+    int size() {
+        return this.bodies.size();
+    }
+
+}
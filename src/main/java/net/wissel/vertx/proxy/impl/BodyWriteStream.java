@@ -0,0 +1,74 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * Collects what gets written into a {@link CachedBody}, e.g. the output of a
+ * content filter
+ *
+ * @author swissel
+ *
+ */
+class BodyWriteStream implements WriteStream<Buffer> {
+
+    private final CachedBody body;
+
+    BodyWriteStream(final CachedBody body) {
+        this.body = body;
+    }
+
+    @Override
+    public WriteStream<Buffer> drainHandler(final Handler<Void> handler) {
+        return this;
+    }
+
+    @Override
+    public void end() {
+        // Nothing to flush
+    }
+
+    @Override
+    public WriteStream<Buffer> exceptionHandler(final Handler<Throwable> handler) {
+        return this;
+    }
+
+    @Override
+    public WriteStream<Buffer> setWriteQueueMaxSize(final int maxSize) {
+        return this;
+    }
+
+    @Override
+    public WriteStream<Buffer> write(final Buffer data) {
+        this.body.append(data);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return false;
+    }
+
+}
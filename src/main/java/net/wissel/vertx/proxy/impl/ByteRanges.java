@@ -0,0 +1,189 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Parses RFC 7233 byte range requests against a body of known length
+ *
+ * @author swissel
+ *
+ */
+class ByteRanges {
+
+    /**
+     * A satisfiable range, first and last byte included
+     */
+    static class Range {
+
+        final long first;
+        final long last;
+
+        Range(final long first, final long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * @param total
+         *            length of the whole body
+         * @return value for the Content-Range header
+         */
+        String contentRange(final long total) {
+            return "bytes " + this.first + "-" + this.last + "/" + total;
+        }
+
+        long length() {
+            return (this.last - this.first) + 1;
+        }
+
+    }
+
+    /**
+     * More ranges than that in one request get the whole body, it is cheaper
+     * than the parts and protects against requests for many tiny overlapping
+     * ranges
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * @param total
+     *            length of the body
+     * @return value for the Content-Range header of a 416 response
+     */
+    static String unsatisfied(final long total) {
+        return "bytes */" + total;
+    }
+
+    /**
+     * @param ranges
+     *            the ranges, in response order
+     * @param total
+     *            length of the body
+     * @param contentType
+     *            Content-Type of the body, null when there is none
+     * @param boundary
+     *            the multipart boundary
+     * @return the head of each part of a multipart/byteranges body: the
+     *         delimiter and the part headers, the range bytes follow it
+     */
+    static List<Buffer> partHeads(final List<Range> ranges, final long total, final String contentType,
+            final String boundary) {
+        final List<Buffer> result = new ArrayList<>();
+        for (final Range range : ranges) {
+            final StringBuilder head = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            head.append("Content-Range: ").append(range.contentRange(total)).append("\r\n\r\n");
+            result.add(Buffer.buffer(head.toString()));
+        }
+        return result;
+    }
+
+    /**
+     * @param boundary
+     *            the multipart boundary
+     * @return the close delimiter ending a multipart/byteranges body
+     */
+    static Buffer closeDelimiter(final String boundary) {
+        return Buffer.buffer("\r\n--" + boundary + "--\r\n");
+    }
+
+    /**
+     * @param ifRange
+     *            the If-Range header
+     * @param etag
+     *            current entity tag, null when there is none
+     * @param lastModified
+     *            current Last-Modified, null when there is none
+     * @return true when the range applies: a strong entity tag or the exact
+     *         modification date matches
+     */
+    static boolean ifRange(final String ifRange, final String etag, final Date lastModified) {
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return Preconditions.matches(value, etag, false);
+        }
+        final Date date = ParseUtils.parseHeaderDate(value);
+        return (date != null) && (lastModified != null) && (date.getTime() == lastModified.getTime());
+    }
+
+    /**
+     * @param header
+     *            the Range header
+     * @param total
+     *            length of the body
+     * @return the satisfiable ranges in request order, empty when none is
+     *         satisfiable, null when the header is to be ignored: not bytes,
+     *         malformed or too many ranges
+     */
+    static List<Range> parse(final String header, final long total) {
+        final String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        final List<Range> result = new ArrayList<>();
+        int count = 0;
+        for (final String spec : value.substring(6).split(",")) {
+            final String part = spec.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (++count > ByteRanges.MAX_RANGES) {
+                return null;
+            }
+            final int dash = part.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // Suffix: the last n bytes
+                    final long suffix = Long.parseLong(part.substring(1));
+                    if ((suffix > 0) && (total > 0)) {
+                        result.add(new Range(Math.max(0, total - suffix), total - 1));
+                    }
+                    continue;
+                }
+                final long first = Long.parseLong(part.substring(0, dash));
+                final String lastValue = part.substring(dash + 1);
+                final long last = lastValue.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastValue);
+                if (last < first) {
+                    return null;
+                }
+                if (first < total) {
+                    result.add(new Range(first, Math.min(last, total - 1)));
+                }
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+        return (count == 0) ? null : result;
+    }
+
+}
@@ -9,17 +9,48 @@
  ********************************************************************************/
 package net.wissel.vertx.proxy.impl;
 
+import java.util.Date;
+
 /**
  * @author <a href="mailto:julien@julienviet.com">Julien Viet</a>
  */
 public class CacheControl {
 
   private int maxAge;
+  private int staleWhileRevalidate;
+  private int staleIfError;
   private boolean _public;
+  private boolean _private;
+  private boolean noStore;
+  private boolean noCache;
+
+  /**
+   * Freshness lifetime of a response: max-age or, when absent, Expires - Date
+   *
+   * @return the lifetime in milliseconds, -1 when there is none
+   */
+  public static long lifetime(CacheControl cacheControl, String dateHeader, String expiresHeader) {
+    if (cacheControl.maxAge() > 0) {
+      return (long) cacheControl.maxAge() * 1000;
+    }
+    if (dateHeader != null && expiresHeader != null) {
+      Date expires = ParseUtils.parseHeaderDate(expiresHeader);
+      Date date = ParseUtils.parseHeaderDate(dateHeader);
+      if (expires != null && date != null) {
+        return expires.getTime() - date.getTime();
+      }
+    }
+    return -1;
+  }
 
   public CacheControl parse(String header) {
     maxAge = -1;
+    staleWhileRevalidate = -1;
+    staleIfError = -1;
     _public = false;
+    _private = false;
+    noStore = false;
+    noCache = false;
     String[] parts = header.split(","); // No regex
     for (String part : parts) {
       part = part.trim().toLowerCase();
@@ -27,10 +58,23 @@ public class CacheControl {
         case "public":
           _public = true;
           break;
+        case "private":
+          _private = true;
+          break;
+        case "no-store":
+          noStore = true;
+          break;
+        case "no-cache":
+          noCache = true;
+          break;
         default:
           if (part.startsWith("max-age=")) {
-            maxAge = Integer.parseInt(part.substring(8));
+            maxAge = seconds(part.substring(8), maxAge);
 
+          } else if (part.startsWith("stale-while-revalidate=")) {
+            staleWhileRevalidate = seconds(part.substring(23), staleWhileRevalidate);
+          } else if (part.startsWith("stale-if-error=")) {
+            staleIfError = seconds(part.substring(15), staleIfError);
           }
           break;
       }
@@ -38,12 +82,51 @@ public class CacheControl {
     return this;
   }
 
+  /**
+   * @return the delta-seconds of a directive, the current value when it isn't
+   *         a valid number so the directive is ignored
+   */
+  private static int seconds(String value, int current) {
+    try {
+      int seconds = Integer.parseInt(value.trim());
+      return (seconds < 0) ? current : seconds;
+    } catch (NumberFormatException e) {
+      return current;
+    }
+  }
+
   public int maxAge() {
     return maxAge;
   }
 
+  /**
+   * @return seconds a stale response may be served while it gets revalidated, -1 when absent
+   */
+  public int staleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  /**
+   * @return seconds a stale response may be served when the backend fails, -1 when absent
+   */
+  public int staleIfError() {
+    return staleIfError;
+  }
+
   public boolean isPublic() {
     return _public;
   }
 
+  public boolean isPrivate() {
+    return _private;
+  }
+
+  public boolean isNoStore() {
+    return noStore;
+  }
+
+  public boolean isNoCache() {
+    return noCache;
+  }
+
 }
@@ -0,0 +1,206 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Builds cache keys. The URL gets normalized: query parameters can be sorted
+ * and cache busters dropped. When the backend answered with a
+ * <code>Vary</code> header for a URL, the values of the listed request
+ * headers become part of the key, so each variant is cached on its own
+ *
+ * @author swissel
+ *
+ */
+class CacheKeys {
+
+    /**
+     * Separates the URL from the variant part of a key
+     */
+    static final char VARIANT = '\u0000';
+
+    private final boolean                     sortQuery;
+    private final Set<String>                 dropParams = new HashSet<>();
+    private final Cache<String, List<String>> varyNames;
+
+    CacheKeys(final JsonObject config) {
+        this.sortQuery = config.getBoolean("sortQuery", false);
+        final JsonArray drop = config.getJsonArray("dropParams", new JsonArray());
+        drop.forEach(name -> this.dropParams.add(String.valueOf(name)));
+        this.varyNames = Caffeine.newBuilder()
+                .maximumSize(config.getLong("varyKeys", 10000L))
+                .executor(Runnable::run)
+                .build();
+    }
+
+    /**
+     * @param key
+     *            a cache key
+     * @return the normalized URL part of the key
+     */
+    static String base(final String key) {
+        final int variant = key.indexOf(CacheKeys.VARIANT);
+        return (variant < 0) ? key : key.substring(0, variant);
+    }
+
+    /**
+     * @param headers
+     *            response headers
+     * @return the lower case header names listed in <code>Vary</code>, empty
+     *         when there is none, null for <code>Vary: *</code>
+     */
+    static List<String> varyNames(final MultiMap headers) {
+        final List<String> result = new ArrayList<>();
+        for (final String vary : headers.getAll("Vary")) {
+            for (final String name : vary.split(",")) {
+                final String trimmed = name.trim().toLowerCase(Locale.ROOT);
+                if ("*".equals(trimmed)) {
+                    return null;
+                }
+                if (!trimmed.isEmpty() && !result.contains(trimmed)) {
+                    result.add(trimmed);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Drops the remembered <code>Vary</code> names
+     */
+    void clear() {
+        this.varyNames.invalidateAll();
+    }
+
+    /**
+     * Key to look a request up with
+     *
+     * @param absoluteUri
+     *            the request URL
+     * @param requestHeaders
+     *            the request headers
+     * @return the key
+     */
+    String key(final String absoluteUri, final MultiMap requestHeaders) {
+        final String base = this.normalize(absoluteUri);
+        final List<String> names = this.varyNames.getIfPresent(base);
+        return (names == null) ? base : this.variant(base, names, requestHeaders);
+    }
+
+    /**
+     * Key to store a response under, remembers its <code>Vary</code> names for
+     * later lookups
+     *
+     * @param absoluteUri
+     *            the request URL
+     * @param requestHeaders
+     *            the request headers
+     * @param responseHeaders
+     *            the response headers
+     * @return the key, null when the response varies on everything
+     */
+    String key(final String absoluteUri, final MultiMap requestHeaders, final MultiMap responseHeaders) {
+        final String base = this.normalize(absoluteUri);
+        final List<String> names = CacheKeys.varyNames(responseHeaders);
+        if (names == null) {
+            return null;
+        }
+        this.vary(base, names);
+        return names.isEmpty() ? base : this.variant(base, names, requestHeaders);
+    }
+
+    /**
+     * Remembers the <code>Vary</code> names for a URL
+     *
+     * @param base
+     *            the normalized URL
+     * @param names
+     *            header names, empty when the URL doesn't vary
+     */
+    void vary(final String base, final List<String> names) {
+        if (names.isEmpty()) {
+            this.varyNames.invalidate(base);
+        } else {
+            this.varyNames.put(base, names);
+        }
+    }
+
+    /**
+     * Sorts the query parameters by name and drops the configured ones.
+     * Repeated names keep the order of their values, some targets read them
+     * as a list
+     */
+    String normalize(final String absoluteUri) {
+        final int queryStart = absoluteUri.indexOf('?');
+        if ((queryStart < 0) || (!this.sortQuery && this.dropParams.isEmpty())) {
+            return absoluteUri;
+        }
+        final List<String> params = new ArrayList<>();
+        for (final String param : absoluteUri.substring(queryStart + 1).split("&")) {
+            if (!param.isEmpty() && !this.dropParams.contains(CacheKeys.name(param))) {
+                params.add(param);
+            }
+        }
+        if (this.sortQuery) {
+            // Stable, equal names stay in request order
+            params.sort(Comparator.comparing(CacheKeys::name));
+        }
+        final String path = absoluteUri.substring(0, queryStart);
+        return params.isEmpty() ? path : path + "?" + String.join("&", params);
+    }
+
+    private static String name(final String param) {
+        final int eq = param.indexOf('=');
+        return (eq < 0) ? param : param.substring(0, eq);
+    }
+
+    private String variant(final String base, final List<String> names, final MultiMap requestHeaders) {
+        final StringBuilder key = new StringBuilder(base);
+        for (final String name : names) {
+            key.append(CacheKeys.VARIANT).append(name).append('=');
+            final List<String> values = new ArrayList<>();
+            for (final String value : requestHeaders.getAll(name)) {
+                // Whitespace around list members doesn't change the meaning
+                values.addAll(Arrays.asList(value.trim().split("\\s*,\\s*")));
+            }
+            key.append(String.join(",", values));
+        }
+        return key.toString();
+    }
+
+}
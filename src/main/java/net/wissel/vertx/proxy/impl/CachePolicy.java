@@ -0,0 +1,97 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.util.regex.Pattern;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Cache settings for a route, matched with a regex against the request URI
+ * like the filter paths. Values from the backend Cache-Control header win over
+ * the ones configured here
+ *
+ * @author swissel
+ *
+ */
+public class CachePolicy {
+
+    private final Pattern path;
+    private final long    staleWhileRevalidate;
+    private final long    staleIfError;
+    private final long    privateTtl;
+
+    /**
+     * @param config
+     *            route entry with <code>path</code>, stale windows and
+     *            <code>privateTtl</code> in seconds
+     * @param defaults
+     *            policy to take missing values from, null for none
+     */
+    public CachePolicy(final JsonObject config, final CachePolicy defaults) {
+        final String pathRegex = config.getString("path");
+        this.path = (pathRegex == null) ? null : Pattern.compile(pathRegex);
+        this.staleWhileRevalidate = this.seconds(config, "staleWhileRevalidate",
+                (defaults == null) ? 0 : defaults.staleWhileRevalidate);
+        this.staleIfError = this.seconds(config, "staleIfError", (defaults == null) ? 0 : defaults.staleIfError);
+        this.privateTtl = this.seconds(config, "privateTtl", (defaults == null) ? -1 : defaults.privateTtl);
+    }
+
+    /**
+     * @param uri
+     *            the request URI
+     * @return true when the policy applies to the URI
+     */
+    public boolean matches(final String uri) {
+        return (this.path != null) && this.path.matcher(uri).matches();
+    }
+
+    /**
+     * @return milliseconds a stale response can be served while it gets
+     *         revalidated
+     */
+    public long staleWhileRevalidate() {
+        return this.staleWhileRevalidate;
+    }
+
+    /**
+     * @return milliseconds a stale response can be served when the backend
+     *         fails
+     */
+    public long staleIfError() {
+        return this.staleIfError;
+    }
+
+    /**
+     * @return milliseconds private responses are kept, whatever freshness
+     *         the backend gave them, -1 when not configured
+     */
+    public long privateTtl() {
+        return this.privateTtl;
+    }
+
+    private long seconds(final JsonObject config, final String name, final long defaultMillis) {
+        final Long value = config.getLong(name);
+        return (value == null) ? defaultMillis : value * 1000;
+    }
+
+}
@@ -0,0 +1,117 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Storage for the body of a cached response. Bodies are filled while the
+ * response streams from the backend and are reference counted, so storage
+ * that needs an explicit free can release it once the cache and all clients
+ * being served from it are done
+ *
+ * @author swissel
+ *
+ */
+interface CachedBody {
+
+    /**
+     * @param offHeap
+     *            true for pooled direct memory, false for a heap buffer
+     * @return a new empty body holding one reference
+     */
+    static CachedBody create(final boolean offHeap) {
+        return offHeap ? new OffHeapBody() : new HeapBody();
+    }
+
+    /**
+     * Appends a chunk while the body streams in
+     *
+     * @param chunk
+     *            the data
+     */
+    void append(Buffer chunk);
+
+    /**
+     * Appends a region of a file, blocking
+     *
+     * @param channel
+     *            the file
+     * @param position
+     *            where the region starts
+     * @param length
+     *            bytes to read
+     * @throws IOException
+     *             when the file is shorter or can't be read
+     */
+    void append(FileChannel channel, long position, int length) throws IOException;
+
+    /**
+     * @return the whole body, without copying where the storage allows it.
+     *         Only valid while a reference is held
+     */
+    Buffer buffer();
+
+    /**
+     * @return the body copied to the heap, valid without holding a reference
+     */
+    Buffer copy();
+
+    /**
+     * @return true when the storage must be released explicitly
+     */
+    boolean isDirect();
+
+    /**
+     * @return size in bytes
+     */
+    int length();
+
+    /**
+     * Drops a reference, the storage is freed with the last one
+     */
+    void release();
+
+    /**
+     * Adds a reference
+     *
+     * @return this body
+     */
+    CachedBody retain();
+
+    /**
+     * A part of the body to write to a socket, without copying. Unlike
+     * {@link #buffer()} the part stays valid until the writer released it,
+     * even when the last reference on the body went in the meantime
+     *
+     * @param start
+     *            first byte, inclusive
+     * @param end
+     *            last byte, exclusive
+     * @return the part
+     */
+    Buffer slice(int start, int end);
+
+}
@@ -18,4 +18,10 @@ public interface CachedHttpClientResponse extends HttpClientResponse {
 
   void send();
 
+  /**
+   * Stops the body stream, e.g. when the client went away, and drops the
+   * reference it held on the cached resource
+   */
+  void close();
+
 }
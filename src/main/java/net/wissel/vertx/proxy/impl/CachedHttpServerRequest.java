@@ -220,7 +220,7 @@ class CachedHttpServerRequest implements HttpServerRequest {
 
   @Override
   public HttpConnection connection() {
-    throw new UnsupportedOperationException();
+    return request.connection();
   }
 
 @Override
@@ -0,0 +1,530 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Second cache tier on local disk. Bodies are appended to segment files,
+ * each record being a small Json header block followed by the raw body. Only
+ * the position of a record and what is needed to judge its freshness stay on
+ * the heap. Entries evicted from memory share segments, bodies too large for
+ * memory are streamed into a segment of their own. When the tier runs over
+ * its budget the oldest segment gets deleted as a whole
+ *
+ * @author swissel
+ *
+ */
+class DiskTier {
+
+    /**
+     * Position and freshness of a record, the index value
+     */
+    static final class Entry {
+        final Segment segment;
+        final long    offset;
+        final int     headerLength;
+        final long    length;
+        final long    timestamp;
+        final long    maxAge;
+        final long    staleFor;
+
+        Entry(final Segment segment, final long offset, final int headerLength, final long length,
+                final Resource resource) {
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.length = length;
+            this.timestamp = resource.timestamp;
+            this.maxAge = resource.maxAge;
+            this.staleFor = Math.max(resource.staleWhileRevalidate, resource.staleIfError);
+        }
+
+        /**
+         * @return the segment file
+         */
+        String file() {
+            return this.segment.file.toString();
+        }
+
+        /**
+         * @return where the body starts in the segment file
+         */
+        long bodyOffset() {
+            return this.offset + this.headerLength;
+        }
+
+        boolean isFresh(final long now) {
+            return (now - this.timestamp) <= this.maxAge;
+        }
+
+        boolean isServable(final long now) {
+            return (now - this.timestamp) <= (this.maxAge + this.staleFor);
+        }
+    }
+
+    /**
+     * An append only file
+     */
+    static final class Segment {
+        final Path       file;
+        long             size    = 0;
+        volatile boolean dropped = false;
+
+        Segment(final Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Opens the file for writing, unless the segment got dropped. Checked
+         * under the same lock the delete takes, so a late write can't bring a
+         * deleted file back
+         *
+         * @return the channel, null when dropped
+         */
+        synchronized FileChannel open() throws IOException {
+            return this.dropped ? null
+                    : FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        synchronized void delete() {
+            DiskTier.delete(this.file);
+        }
+    }
+
+    /**
+     * A body too large for memory, written to its own segment while it
+     * streams from the backend
+     */
+    final class Spool {
+        private final Segment    segment;
+        private final Resource   resource;
+        private final int        headerLength;
+        private final AtomicLong queued   = new AtomicLong();
+        private FileChannel      channel;
+        private long             position;
+        private boolean          aborted  = false;
+        private volatile boolean failed   = false;
+
+        private Spool(final Segment segment, final Resource resource, final Buffer header) {
+            this.segment = segment;
+            this.resource = resource;
+            this.headerLength = header.length();
+            this.append(header, null);
+        }
+
+        /**
+         * Queues a chunk for writing
+         *
+         * @param data
+         *            the chunk, must not change until written
+         * @param written
+         *            called once the chunk is written or dropped, can be null
+         * @return false when the spool gave up: too large, disk too slow or an
+         *         IO error
+         */
+        boolean append(final Buffer data, final Runnable written) {
+            final long size = data.length();
+            if (this.aborted || this.failed || ((this.position + size) > DiskTier.this.maxEntryBytes)
+                    || (this.queued.get() > DiskTier.this.maxQueuedBytes)) {
+                if (written != null) {
+                    written.run();
+                }
+                this.abort();
+                return false;
+            }
+            final long at = this.position;
+            this.position += size;
+            this.queued.addAndGet(size);
+            DiskTier.this.worker.executeBlocking(fut -> {
+                try {
+                    if (!this.failed) {
+                        if (this.channel == null) {
+                            this.channel = FileChannel.open(this.segment.file, StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE);
+                        }
+                        DiskTier.write(this.channel, data, at);
+                    }
+                } catch (final IOException e) {
+                    this.failed = true;
+                    DiskTier.this.logger.error(e.getMessage(), e);
+                } finally {
+                    this.queued.addAndGet(-size);
+                    if (written != null) {
+                        written.run();
+                    }
+                }
+                fut.complete();
+            }, true, null);
+            return true;
+        }
+
+        /**
+         * Publishes the record once everything queued got written
+         *
+         * @param key
+         *            the cache key
+         */
+        void commit(final String key) {
+            if (this.aborted) {
+                return;
+            }
+            final long bodyLength = this.position - this.headerLength;
+            DiskTier.this.worker.executeBlocking(fut -> {
+                this.close();
+                if (this.failed) {
+                    DiskTier.delete(this.segment.file);
+                } else {
+                    DiskTier.this.add(this.segment, this.position);
+                    DiskTier.this.index.put(key,
+                            new Entry(this.segment, 0, this.headerLength, bodyLength, this.resource));
+                }
+                fut.complete();
+            }, true, null);
+        }
+
+        /**
+         * Drops the record
+         */
+        void abort() {
+            if (this.aborted) {
+                return;
+            }
+            this.aborted = true;
+            DiskTier.this.worker.executeBlocking(fut -> {
+                this.close();
+                DiskTier.delete(this.segment.file);
+                fut.complete();
+            }, true, null);
+        }
+
+        private void close() {
+            if (this.channel != null) {
+                try {
+                    this.channel.close();
+                } catch (final IOException e) {
+                    DiskTier.this.logger.error(e.getMessage(), e);
+                }
+                this.channel = null;
+            }
+        }
+    }
+
+    private static final String SUFFIX = ".seg";
+
+    private final Logger              logger   = LoggerFactory.getLogger(this.getClass());
+    private final ResponseCacheImpl   cache;
+    private final WorkerExecutor      worker;
+    private final Path                directory;
+    private final String              prefix   = String.valueOf(System.currentTimeMillis());
+    private final long                maxBytes;
+    private final long                maxEntryBytes;
+    private final long                segmentBytes;
+    private final long                maxQueuedBytes;
+    private final Map<String, Entry>  index    = new ConcurrentHashMap<>();
+    private final Deque<Segment>      segments = new ArrayDeque<>();
+    private Segment                   current  = null;
+    private long                      bytes    = 0;
+    private long                      sequence = 0;
+
+    DiskTier(final Vertx vertx, final ResponseCacheImpl cache, final JsonObject config) {
+        this.cache = cache;
+        this.directory = Paths.get(config.getString("path", "cache"));
+        this.maxBytes = config.getLong("maxBytes", 1024L * 1024 * 1024);
+        this.maxEntryBytes = config.getLong("maxEntryBytes", this.maxBytes / 8);
+        this.segmentBytes = config.getLong("segmentBytes", 64L * 1024 * 1024);
+        this.maxQueuedBytes = config.getLong("maxQueuedBytes", 16L * 1024 * 1024);
+        this.worker = vertx.createSharedWorkerExecutor("proxy-disk-cache", config.getInteger("workers", 2));
+        // Records from an earlier run aren't indexed, make room for new ones
+        this.worker.executeBlocking(fut -> {
+            try {
+                Files.createDirectories(this.directory);
+                final File[] leftOvers = this.directory.toFile()
+                        .listFiles((dir, name) -> name.endsWith(DiskTier.SUFFIX) && !name.startsWith(this.prefix));
+                if (leftOvers != null) {
+                    for (final File leftOver : leftOvers) {
+                        DiskTier.delete(leftOver.toPath());
+                    }
+                }
+            } catch (final IOException e) {
+                this.logger.error(e.getMessage(), e);
+            }
+            fut.complete();
+        }, false, null);
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            LoggerFactory.getLogger(DiskTier.class).error(e.getMessage(), e);
+        }
+    }
+
+    private static void write(final FileChannel channel, final Buffer data, final long position)
+            throws IOException {
+        final ByteBuf buf = data.getByteBuf();
+        int done = 0;
+        while (done < buf.readableBytes()) {
+            done += buf.getBytes(buf.readerIndex() + done, channel, position + done, buf.readableBytes() - done);
+        }
+    }
+
+    /**
+     * @return bytes in all segments
+     */
+    synchronized long bytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Drops the index and all segments
+     */
+    synchronized void clear() {
+        this.index.clear();
+        while (!this.segments.isEmpty()) {
+            this.drop(this.segments.pollFirst());
+        }
+        this.current = null;
+        this.bytes = 0;
+    }
+
+    /**
+     * @return the largest body the tier takes
+     */
+    long maxEntryBytes() {
+        return this.maxEntryBytes;
+    }
+
+    /**
+     * @return number of indexed records
+     */
+    long entries() {
+        return this.index.size();
+    }
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the record or null when the key isn't on disk or the record
+     *         can't be served anymore
+     */
+    Entry get(final String key) {
+        final Entry entry = this.index.get(key);
+        if ((entry != null) && !entry.isServable(System.currentTimeMillis())) {
+            this.index.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Reads a record back, off the event loop
+     *
+     * @param entry
+     *            the record
+     * @param withBody
+     *            false to read status and headers only
+     * @param handler
+     *            gets the resource, complete with its body if requested
+     */
+    void load(final Entry entry, final boolean withBody, final Handler<AsyncResult<Resource>> handler) {
+        this.worker.executeBlocking(fut -> {
+            try (FileChannel channel = FileChannel.open(entry.segment.file, StandardOpenOption.READ)) {
+                final ByteBuffer header = ByteBuffer.allocate(entry.headerLength);
+                while (header.hasRemaining()) {
+                    if (channel.read(header, entry.offset + header.position()) < 0) {
+                        throw new IOException("Truncated segment " + entry.file());
+                    }
+                }
+                final Resource resource = Resource.describedBy(this.cache,
+                        new JsonObject(Buffer.buffer(header.array())));
+                if (withBody) {
+                    final CachedBody body = CachedBody.create(this.cache.offHeap());
+                    try {
+                        body.append(channel, entry.bodyOffset(), (int) entry.length);
+                    } catch (final IOException e) {
+                        body.release();
+                        throw e;
+                    }
+                    resource.completeWith(body);
+                }
+                fut.complete(resource);
+            } catch (final Exception e) {
+                fut.fail(e);
+            }
+        }, false, handler);
+    }
+
+    /**
+     * Drops a record from the index, its bytes go with its segment
+     *
+     * @param key
+     *            the cache key
+     */
+    void remove(final String key) {
+        this.index.remove(key);
+    }
+
+    /**
+     * Drops the records of all matching keys
+     *
+     * @param keys
+     *            tests the cache keys
+     * @return the number of records dropped
+     */
+    long removeIf(final Predicate<String> keys) {
+        long removed = 0;
+        for (final String key : this.index.keySet()) {
+            if (keys.test(key) && (this.index.remove(key) != null)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Writes a resource evicted from memory to the shared segment
+     *
+     * @param key
+     *            the cache key
+     * @param resource
+     *            a complete resource
+     */
+    void spill(final String key, final Resource resource) {
+        final Buffer header = resource.describe().toBuffer();
+        final CachedBody body = resource.retainBody();
+        final long length = header.length() + (long) body.length();
+        if (body.length() > this.maxEntryBytes) {
+            body.release();
+            return;
+        }
+        final Segment segment;
+        final long offset;
+        synchronized (this) {
+            if ((this.current == null) || ((this.current.size + length) > this.segmentBytes)) {
+                this.current = this.newSegment();
+            }
+            segment = this.current;
+            offset = segment.size;
+            this.add(segment, length);
+        }
+        this.worker.executeBlocking(fut -> {
+            // Positional writes, spills don't need to be ordered. The segment
+            // may get dropped any time, its records must not outlive it
+            try (FileChannel channel = segment.open()) {
+                if (channel != null) {
+                    DiskTier.write(channel, header, offset);
+                    DiskTier.write(channel, body.buffer(), offset + header.length());
+                    final Entry entry = new Entry(segment, offset, header.length(), body.length(), resource);
+                    this.index.put(key, entry);
+                    if (segment.dropped) {
+                        this.index.remove(key, entry);
+                    }
+                }
+            } catch (final IOException e) {
+                this.logger.error(e.getMessage(), e);
+            } finally {
+                body.release();
+            }
+            fut.complete();
+        }, false, null);
+    }
+
+    /**
+     * Starts writing a body that is too large for memory to its own segment
+     *
+     * @param resource
+     *            the resource, status and headers are known
+     * @return the spool
+     */
+    Spool spool(final Resource resource) {
+        final Segment segment;
+        synchronized (this) {
+            segment = this.newSegment();
+        }
+        return new Spool(segment, resource, resource.describe().toBuffer());
+    }
+
+    /**
+     * Accounts bytes in a segment and deletes the oldest segments while the
+     * tier is over budget
+     */
+    private synchronized void add(final Segment segment, final long length) {
+        if (!this.segments.contains(segment)) {
+            this.segments.addLast(segment);
+        }
+        segment.size += length;
+        this.bytes += length;
+        while ((this.bytes > this.maxBytes) && (this.segments.size() > 1)) {
+            final Segment oldest = this.segments.pollFirst();
+            if (oldest == this.current) {
+                this.current = null;
+            }
+            this.drop(oldest);
+        }
+    }
+
+    /**
+     * Removes a segment, the file goes when the worker gets to it. Clients
+     * served with sendFile keep their open file
+     */
+    private void drop(final Segment segment) {
+        // Before the index, so a spill still writing sees it after it indexed
+        segment.dropped = true;
+        this.bytes -= segment.size;
+        this.index.values().removeIf(entry -> entry.segment == segment);
+        this.worker.executeBlocking(fut -> {
+            segment.delete();
+            fut.complete();
+        }, false, null);
+    }
+
+    private Segment newSegment() {
+        this.sequence++;
+        return new Segment(this.directory.resolve(this.prefix + "-" + this.sequence + DiskTier.SUFFIX));
+    }
+
+}
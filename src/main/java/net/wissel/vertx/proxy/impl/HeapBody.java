@@ -0,0 +1,92 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Body kept in a heap {@link Buffer}, reference counting is left to the GC
+ *
+ * @author swissel
+ *
+ */
+class HeapBody implements CachedBody {
+
+    private final Buffer content = Buffer.buffer();
+
+    @Override
+    public void append(final Buffer chunk) {
+        this.content.appendBuffer(chunk);
+    }
+
+    @Override
+    public void append(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        this.content.appendBytes(data.array());
+    }
+
+    @Override
+    public Buffer buffer() {
+        return this.content;
+    }
+
+    @Override
+    public Buffer copy() {
+        return this.content.copy();
+    }
+
+    @Override
+    public boolean isDirect() {
+        return false;
+    }
+
+    @Override
+    public int length() {
+        return this.content.length();
+    }
+
+    @Override
+    public void release() {
+        // Garbage collected
+    }
+
+    @Override
+    public CachedBody retain() {
+        return this;
+    }
+
+    @Override
+    public Buffer slice(final int start, final int end) {
+        // The slice keeps the heap buffer alive
+        return this.content.slice(start, end);
+    }
+
+}
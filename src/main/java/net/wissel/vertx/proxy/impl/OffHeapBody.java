@@ -0,0 +1,102 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Body kept in pooled direct memory. Netty's pooled allocator hands out
+ * regions of large direct memory chunks, so cached bodies neither add to the
+ * heap nor get copied by the GC. The memory goes back to the pool when the
+ * last reference is released
+ *
+ * @author swissel
+ *
+ */
+class OffHeapBody implements CachedBody {
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(OffHeapBody.INITIAL_CAPACITY);
+
+    @Override
+    public void append(final Buffer chunk) {
+        this.content.writeBytes(chunk.getByteBuf());
+    }
+
+    @Override
+    public void append(final FileChannel channel, final long position, final int length) throws IOException {
+        // Straight from the file into direct memory
+        this.content.ensureWritable(length);
+        int done = 0;
+        while (done < length) {
+            final int read = this.content.writeBytes(channel, position + done, length - done);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            done += read;
+        }
+    }
+
+    @Override
+    public Buffer buffer() {
+        // Vert.x wraps the slice as is, writes go straight from direct memory
+        return Buffer.buffer(this.content.slice());
+    }
+
+    @Override
+    public Buffer copy() {
+        return Buffer.buffer(this.content.readableBytes()).appendBuffer(this.buffer());
+    }
+
+    @Override
+    public boolean isDirect() {
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return this.content.readableBytes();
+    }
+
+    @Override
+    public void release() {
+        this.content.release();
+    }
+
+    @Override
+    public CachedBody retain() {
+        this.content.retain();
+        return this;
+    }
+
+    @Override
+    public Buffer slice(final int start, final int end) {
+        return SlabSlice.of(this.content.slice(start, end - start));
+    }
+
+}
@@ -0,0 +1,128 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.util.Date;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpHeaders;
+
+/**
+ * Evaluates the RFC 7232 preconditions of a GET or HEAD request against a
+ * cached representation, in the order of section 6: If-Match, else
+ * If-Unmodified-Since, then If-None-Match, else If-Modified-Since
+ *
+ * @author swissel
+ *
+ */
+class Preconditions {
+
+    /**
+     * The request has no precondition that stops it, send the representation
+     */
+    static final int PROCEED = 0;
+
+    /**
+     * @param headers
+     *            the request headers
+     * @param etag
+     *            ETag of the cached representation, null when there is none
+     * @param lastModified
+     *            Last-Modified of the cached representation, null when there
+     *            is none
+     * @return 412 when a precondition failed, 304 when the client's copy is
+     *         current, otherwise {@link #PROCEED}
+     */
+    static int evaluate(final MultiMap headers, final String etag, final Date lastModified) {
+        final String ifMatch = Preconditions.joined(headers, HttpHeaders.IF_MATCH);
+        if (ifMatch != null) {
+            if (!Preconditions.matches(ifMatch, etag, false)) {
+                return 412;
+            }
+        } else {
+            final Date ifUnmodifiedSince = Preconditions.date(headers, "If-Unmodified-Since");
+            if ((ifUnmodifiedSince != null) && (lastModified != null) && lastModified.after(ifUnmodifiedSince)) {
+                return 412;
+            }
+        }
+        final String ifNoneMatch = Preconditions.joined(headers, HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return Preconditions.matches(ifNoneMatch, etag, true) ? 304 : Preconditions.PROCEED;
+        }
+        final Date ifModifiedSince = Preconditions.date(headers, HttpHeaders.IF_MODIFIED_SINCE);
+        if ((ifModifiedSince != null) && (lastModified != null) && !lastModified.after(ifModifiedSince)) {
+            return 304;
+        }
+        return Preconditions.PROCEED;
+    }
+
+    /**
+     * Compares the entity tags of a header with the current one. The weak
+     * comparison ignores the W/ prefix, the strong one only matches strong
+     * tags with the same opaque value
+     *
+     * @param header
+     *            an If-Match or If-None-Match value: * or a list of tags
+     * @param etag
+     *            the current entity tag, null when there is none
+     * @param weak
+     *            true for the weak comparison function
+     */
+    static boolean matches(final String header, final String etag, final boolean weak) {
+        if ("*".equals(header.trim())) {
+            return true;
+        }
+        if (etag == null) {
+            return false;
+        }
+        final boolean currentWeak = etag.startsWith("W/");
+        if (currentWeak && !weak) {
+            return false;
+        }
+        final String opaque = currentWeak ? etag.substring(2) : etag;
+        // Opaque tags may contain commas, so the list is split at the quotes
+        int pos = 0;
+        while (pos < header.length()) {
+            final int start = header.indexOf('"', pos);
+            final int end = (start < 0) ? -1 : header.indexOf('"', start + 1);
+            if (end < 0) {
+                break;
+            }
+            final boolean tagWeak = (start >= 2) && header.startsWith("W/", start - 2);
+            if ((weak || !tagWeak) && opaque.equals(header.substring(start, end + 1))) {
+                return true;
+            }
+            pos = end + 1;
+        }
+        return false;
+    }
+
+    private static Date date(final MultiMap headers, final CharSequence name) {
+        final String value = headers.get(name);
+        return (value == null) ? null : ParseUtils.parseHeaderDate(value);
+    }
+
+    private static String joined(final MultiMap headers, final CharSequence name) {
+        return headers.contains(name) ? String.join(",", headers.getAll(name)) : null;
+    }
+
+}
@@ -0,0 +1,269 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Cache partition for responses only one session may see. Each session gets
+ * its own Caffeine cache bounded by the per session quota, sessions drop out
+ * when idle, when there are too many or, least recently active first, when
+ * the partition is over its byte budget. The session is identified by a
+ * cookie or a header, its value is hashed into the key and never stored
+ *
+ * @author swissel
+ *
+ */
+class PrivatePartition {
+
+    /**
+     * Starts the keys of the partition, followed by the session hash
+     */
+    static final String PRIVATE = "private:";
+
+    private final String                                 cookie;
+    private final String                                 header;
+    private final long                                   sessionBytes;
+    private final long                                   maxBytes;
+    private final AtomicLong                             bytes = new AtomicLong();
+    private final long                                   ttl;
+    private final Consumer<Resource>                     release;
+    private final Cache<String, Cache<String, Resource>> sessions;
+
+    /**
+     * @param config
+     *            the <code>private</code> section of the cache settings
+     * @param release
+     *            frees resources the partition let go of
+     */
+    PrivatePartition(final JsonObject config, final Consumer<Resource> release) {
+        final JsonObject session = config.getJsonObject("session", new JsonObject());
+        this.header = session.getString("header");
+        this.cookie = (this.header == null) ? session.getString("cookie", "sid") : null;
+        this.sessionBytes = config.getLong("sessionBytes", 1048576L);
+        this.maxBytes = config.getLong("maxBytes", 16777216L);
+        this.ttl = config.getLong("ttl", 0L) * 1000;
+        this.release = release;
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(config.getLong("sessions", 1000L))
+                .expireAfterAccess(config.getLong("idleSeconds", 1800L), TimeUnit.SECONDS)
+                .executor(Runnable::run)
+                .removalListener((String id, Cache<String, Resource> entries, RemovalCause cause) -> {
+                    if (entries != null) {
+                        entries.invalidateAll();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param key
+     *            a cache key, raw or filtered
+     * @return true when the key belongs to the partition
+     */
+    static boolean isPrivate(final String key) {
+        return ResponseCacheImpl.unfiltered(key).startsWith(PrivatePartition.PRIVATE);
+    }
+
+    /**
+     * @param key
+     *            a raw key of the partition
+     * @return the key without the session part
+     */
+    static String shared(final String key) {
+        return key.substring(key.indexOf(':', PrivatePartition.PRIVATE.length()) + 1);
+    }
+
+    private static String session(final String key) {
+        final String raw = ResponseCacheImpl.unfiltered(key);
+        return raw.substring(PrivatePartition.PRIVATE.length(), raw.indexOf(':', PrivatePartition.PRIVATE.length()));
+    }
+
+    private static String hash(final String value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final StringBuilder result = new StringBuilder();
+            for (final byte b : digest.digest(value.getBytes(StandardCharsets.UTF_8))) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // SHA-256 is part of every JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param requestHeaders
+     *            the request headers
+     * @param key
+     *            the shared cache key of the request
+     * @return the key in the partition, null when the request has no session
+     */
+    String key(final MultiMap requestHeaders, final String key) {
+        final String session = this.sessionOf(requestHeaders);
+        return (session == null) ? null : PrivatePartition.PRIVATE + PrivatePartition.hash(session) + ":" + key;
+    }
+
+    private String sessionOf(final MultiMap requestHeaders) {
+        if (this.header != null) {
+            final String value = requestHeaders.get(this.header);
+            return ((value == null) || value.isEmpty()) ? null : value;
+        }
+        for (final String cookies : requestHeaders.getAll(HttpHeaders.COOKIE)) {
+            for (final String cookie : cookies.split(";")) {
+                final int eq = cookie.indexOf('=');
+                if ((eq > 0) && cookie.substring(0, eq).trim().equals(this.cookie)) {
+                    final String value = cookie.substring(eq + 1).trim();
+                    return value.isEmpty() ? null : value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return milliseconds a private response without freshness information
+     *         is kept, 0 for not at all
+     */
+    long ttl() {
+        return this.ttl;
+    }
+
+    /**
+     * @return the largest body a session can keep
+     */
+    long maxEntryBytes() {
+        return this.sessionBytes;
+    }
+
+    Resource get(final String key) {
+        final Cache<String, Resource> entries = this.sessions.getIfPresent(PrivatePartition.session(key));
+        return (entries == null) ? null : entries.getIfPresent(key);
+    }
+
+    void put(final String key, final Resource resource) {
+        final String session = PrivatePartition.session(key);
+        final Cache<String, Resource> entries = this.sessions.get(session, id -> Caffeine.newBuilder()
+                .maximumWeight(this.sessionBytes)
+                .weigher((String k, Resource r) -> r.weight())
+                .executor(Runnable::run)
+                .expireAfter(new ResponseCacheImpl.ResourceExpiry())
+                .removalListener((String k, Resource r, RemovalCause cause) -> {
+                    if (r != null) {
+                        this.bytes.addAndGet(-r.weight());
+                        this.release.accept(r);
+                    }
+                })
+                .build());
+        this.bytes.addAndGet(resource.weight());
+        entries.put(key, resource);
+        if (this.sessions.getIfPresent(session) != entries) {
+            // The session got dropped meanwhile, nobody would free the entry
+            entries.invalidate(key);
+        }
+        this.trim();
+    }
+
+    /**
+     * Drops the least recently active sessions until the partition is within
+     * its byte budget. The session just written to was accessed last, it goes
+     * only when it is over the budget on its own
+     */
+    private void trim() {
+        while (this.bytes.get() > this.maxBytes) {
+            final String oldest = this.sessions.policy().expireAfterAccess()
+                    .flatMap(expiration -> expiration.oldest(1).keySet().stream().findFirst())
+                    .orElse(null);
+            if (oldest == null) {
+                return;
+            }
+            this.sessions.invalidate(oldest);
+        }
+    }
+
+    void remove(final String key) {
+        final Cache<String, Resource> entries = this.sessions.getIfPresent(PrivatePartition.session(key));
+        if (entries != null) {
+            entries.invalidate(key);
+        }
+    }
+
+    /**
+     * @param keys
+     *            tests the keys
+     * @return the number of entries dropped
+     */
+    long removeIf(final Predicate<String> keys) {
+        long removed = 0;
+        for (final Cache<String, Resource> entries : this.sessions.asMap().values()) {
+            for (final String key : entries.asMap().keySet()) {
+                if (keys.test(key) && (entries.asMap().remove(key) != null)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    void clear() {
+        this.sessions.invalidateAll();
+    }
+
+    /**
+     * Drops expired entries and idle sessions
+     */
+    void cleanUp() {
+        this.sessions.cleanUp();
+        this.sessions.asMap().values().forEach(Cache::cleanUp);
+    }
+
+    /**
+     * @return sessions, entries and bytes
+     */
+    JsonObject stats() {
+        long entries = 0;
+        for (final Cache<String, Resource> session : this.sessions.asMap().values()) {
+            entries += session.estimatedSize();
+        }
+        return new JsonObject()
+                .put("sessions", this.sessions.estimatedSize())
+                .put("entries", entries)
+                .put("bytes", this.bytes.get())
+                .put("maxBytes", this.maxBytes);
+    }
+
+}
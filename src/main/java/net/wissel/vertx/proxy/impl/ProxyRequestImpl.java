@@ -40,6 +40,7 @@ import net.wissel.vertx.proxy.ProxyFilter;
 import net.wissel.vertx.proxy.ProxyRequest;
 import net.wissel.vertx.proxy.ProxyResponse;
 import net.wissel.vertx.proxy.SfdcHttpProxy;
+import net.wissel.vertx.proxy.filters.FilterWorker;
 
 /**
  * @author <a href="mailto:julien@julienviet.com">Julien Viet</a>
@@ -54,12 +55,28 @@ public class ProxyRequestImpl implements ProxyRequest {
         private String              etag;
         private boolean             publicCacheControl;
         private boolean             sent;
+        private Function<ReadStream<Buffer>, ReadStream<Buffer>> bodyFilter = Function.identity();
+        private ProxyFilter         contentFilter = null;
         private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
         public ProxyResponseImpl(final SfdcHttpProxy proxy) {
             this.proxy = proxy;
         }
 
+        @Override
+        public ProxyResponse bodyFilter(final Function<ReadStream<Buffer>, ReadStream<Buffer>> filter) {
+            checkSent();
+            this.bodyFilter = (filter == null) ? Function.identity() : filter;
+            return this;
+        }
+
+        @Override
+        public ProxyResponse contentFilter(final ProxyFilter filter) {
+            checkSent();
+            this.contentFilter = filter;
+            return this;
+        }
+
         @Override
         public void cancel() {
             checkSent();
@@ -118,7 +135,9 @@ public class ProxyRequestImpl implements ProxyRequest {
                 }
             });
 
-            backResponse.exceptionHandler(err -> {
+            // The tee sees backend failures too, so it can drop what it collected
+            final ReadStream<Buffer> backStream = this.bodyFilter.apply(backResponse);
+            backStream.exceptionHandler(err -> {
                 HttpServerRequest request = stop();
                 this.logger.error(err.getMessage(), err);
                 if (request != null) {
@@ -129,8 +148,8 @@ public class ProxyRequestImpl implements ProxyRequest {
 
             // Apply body filter based on the type of response
             HttpRequestResponse hrr = new HttpRequestResponse(backResponse, backRequest);
-            ProxyFilter filter = proxy.getResponseFilter(hrr);
-            Future<ReadStream<Buffer>> bodyStreamFuture = filter.apply(backResponse);
+            ProxyFilter filter = (this.contentFilter != null) ? this.contentFilter : proxy.getResponseFilter(hrr);
+            Future<ReadStream<Buffer>> bodyStreamFuture = filter.apply(backStream);
 
             bodyStreamFuture.setHandler(handler -> {
                 if (handler.succeeded()) {
@@ -149,12 +168,30 @@ public class ProxyRequestImpl implements ProxyRequest {
                                 Future<Void> endgame = filter.end(frontResponse);
                                 endgame.setHandler(h -> {
                                     frontRequest = null;
+                                    if (h.failed()) {
+                                        this.unavailable(h.cause());
+                                    }
                                     frontResponse.end();
                                     completionHandler.handle(Future.succeededFuture());
                                 });    
                             });
                         } else {
-                            String contentLength = backResponse.getHeader("content-length");
+                            // Non chunked filters run buffer by buffer and fail on the stream
+                            bodyStream.exceptionHandler(err -> {
+                                HttpServerRequest request = stop();
+                                if (request != null) {
+                                    if (this.unavailable(err)) {
+                                        frontResponse.end();
+                                    } else {
+                                        this.logger.error(err.getMessage(), err);
+                                        request.response().close();
+                                    }
+                                    completionHandler.handle(Future.failedFuture(err));
+                                }
+                            });
+                            // Filters change the length, their output is collected and
+                            // sent with its own
+                            String contentLength = filter.isPassThrough() ? backResponse.getHeader("content-length") : null;
                             if (contentLength != null) {
                                 responsePump = Pump.pump(bodyStream, frontResponse);
                                 responsePump.start();
@@ -165,6 +202,7 @@ public class ProxyRequestImpl implements ProxyRequest {
                                     completionHandler.handle(Future.succeededFuture());
                                 });
                             } else {
+                                frontResponse.headers().remove(HttpHeaders.CONTENT_LENGTH);
                                 Buffer body = Buffer.buffer();
                                 bodyStream.handler(body::appendBuffer);
                                 bodyStream.endHandler(v -> {
@@ -182,6 +220,22 @@ public class ProxyRequestImpl implements ProxyRequest {
             });
         }
 
+        /**
+         * Turns the response into a 503 with Retry-After when the filter's pool
+         * was full and nothing has been written yet, the client may retry
+         *
+         * @return true when the response got turned
+         */
+        private boolean unavailable(Throwable cause) {
+            if (!FilterWorker.isRejected(cause) || frontResponse.headWritten()) {
+                return false;
+            }
+            frontResponse.headers().clear();
+            frontResponse.setChunked(false).setStatusCode(503).setStatusMessage("Service Unavailable")
+                    .putHeader(HttpHeaders.RETRY_AFTER, FilterWorker.RETRY_AFTER);
+            return true;
+        }
+
         @Override
         public ProxyResponse set(HttpClientResponse backResponse) {
             checkSent();
@@ -196,16 +250,8 @@ public class ProxyRequestImpl implements ProxyRequest {
                 CacheControl cacheControl = new CacheControl().parse(cacheControlHeader);
                 if (cacheControl.isPublic()) {
                     publicCacheControl = true;
-                    if (cacheControl.maxAge() > 0) {
-                        maxAge = (long) cacheControl.maxAge() * 1000;
-                    } else {
-                        String dateHeader = backResponse.getHeader(HttpHeaders.DATE);
-                        String expiresHeader = backResponse.getHeader(HttpHeaders.EXPIRES);
-                        if ((dateHeader != null) && (expiresHeader != null)) {
-                            maxAge = ParseUtils.parseHeaderDate(expiresHeader).getTime()
-                                    - ParseUtils.parseHeaderDate(dateHeader).getTime();
-                        }
-                    }
+                    maxAge = CacheControl.lifetime(cacheControl, backResponse.getHeader(HttpHeaders.DATE),
+                            backResponse.getHeader(HttpHeaders.EXPIRES));
                 }
             }
             this.maxAge = maxAge;
@@ -0,0 +1,1051 @@
+/********************************************************************************
+ * Copyright (c) 2016, 2017 Julien Viet - https://github.com/vietj
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ ********************************************************************************/
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpFrame;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.StreamPriority;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.streams.ReadStream;
+import net.wissel.vertx.proxy.ProxyResponse;
+
+/**
+ * A cached response: status, headers and the body collected while it was
+ * streamed to the first client
+ *
+ * @author <a href="mailto:julien@julienviet.com">Julien Viet</a>
+ */
+class Resource implements Function<ReadStream<Buffer>, ReadStream<Buffer>> {
+
+	/**
+	 * Largest heap copy of the body a client gets at a time
+	 */
+	private static final int CHUNK_BYTES = 65536;
+
+	/**
+	 * A client that joined while the body was still streaming from the backend
+	 */
+	private static class Subscriber {
+		final Handler<Buffer> dataHandler;
+		final Handler<Void> endHandler;
+		final Handler<Throwable> exceptionHandler;
+
+		Subscriber(Handler<Buffer> dataHandler, Handler<Void> endHandler, Handler<Throwable> exceptionHandler) {
+			this.dataHandler = dataHandler;
+			this.endHandler = endHandler;
+			this.exceptionHandler = exceptionHandler;
+		}
+	}
+
+	private final ResponseCacheImpl cache;
+	final String absoluteUri;
+	String key;
+	final String uri;
+	final int statusCode;
+	final String statusMessage;
+	final MultiMap headers;
+	final long timestamp;
+	final long maxAge;
+	final Date lastModified;
+	final String etag;
+	long staleWhileRevalidate = 0;
+	long staleIfError = 0;
+	// Hits on several event loops may find it stale at the same time
+	final AtomicBoolean revalidating = new AtomicBoolean();
+	// The creator's, handed to the cache on put. Requests serving from the
+	// resource hold their own
+	private final AtomicInteger references = new AtomicInteger(1);
+	private CachedBody content = new HeapBody();
+	private String encoding;
+	private boolean oversized = false;
+	private boolean complete = false;
+	private boolean failed = false;
+	private final List<Subscriber> subscribers = new ArrayList<>();
+	private Handler<Void> doneHandler;
+	private DiskTier.Spool spool;
+
+	public Resource(ResponseCacheImpl cache, String absoluteUri, String uri, int statusCode, String statusMessage,
+			MultiMap headers, long timestamp, long maxAge) {
+		String lastModifiedHeader = headers.get(HttpHeaders.LAST_MODIFIED);
+		this.cache = cache;
+		this.absoluteUri = absoluteUri;
+		this.key = absoluteUri;
+		this.uri = uri;
+		this.statusCode = statusCode;
+		this.statusMessage = statusMessage;
+		this.headers = headers;
+		this.timestamp = timestamp;
+		this.maxAge = maxAge;
+		lastModified = lastModifiedHeader != null ? ParseUtils.parseHeaderDate(lastModifiedHeader) : null;
+		etag = headers.get(HttpHeaders.ETAG);
+	}
+
+	/**
+	 * Rebuilds a resource, without its body, from {@link #describe()}
+	 */
+	static Resource describedBy(ResponseCacheImpl cache, JsonObject json) {
+		MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+		json.getJsonArray("headers").forEach(o -> {
+			JsonArray header = (JsonArray) o;
+			headers.add(header.getString(0), header.getString(1));
+		});
+		return new Resource(cache, json.getString("absoluteUri"), json.getString("uri"), json.getInteger("statusCode"),
+				json.getString("statusMessage"), headers, json.getLong("timestamp"), json.getLong("maxAge"))
+						.staleFor(json.getLong("staleWhileRevalidate"), json.getLong("staleIfError"))
+						.keyed(json.getString("key", json.getString("absoluteUri")))
+						.encodedAs(json.getString("encoding"));
+	}
+
+	/**
+	 * @return everything but the body, for storage outside of memory
+	 */
+	JsonObject describe() {
+		JsonArray headerList = new JsonArray();
+		headers.forEach(header -> headerList.add(new JsonArray().add(header.getKey()).add(header.getValue())));
+		return new JsonObject()
+				.put("key", key)
+				.put("absoluteUri", absoluteUri)
+				.put("uri", uri)
+				.put("statusCode", statusCode)
+				.put("statusMessage", statusMessage)
+				.put("timestamp", timestamp)
+				.put("maxAge", maxAge)
+				.put("staleWhileRevalidate", staleWhileRevalidate)
+				.put("staleIfError", staleIfError)
+				.put("encoding", encoding)
+				.put("headers", headerList);
+	}
+
+	/**
+	 * Tees the backend body into this resource while it is pumped to the client.
+	 * The resource is only published to the cache once the body ended
+	 * successfully and stayed within the entry size limit
+	 */
+	@Override
+	public ReadStream<Buffer> apply(ReadStream<Buffer> s) {
+		content = CachedBody.create(cache.offHeap());
+		return new ReadStream<Buffer>() {
+			@Override
+			public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+				if (endHandler != null) {
+					s.endHandler(v -> {
+						complete = true;
+						if (!oversized) {
+							cache.put(key, Resource.this);
+						} else if (spool != null) {
+							spool.commit(key);
+							spool = null;
+						}
+						subscribers.forEach(sub -> {
+							if (sub.endHandler != null) {
+								sub.endHandler.handle(null);
+							}
+						});
+						subscribers.clear();
+						done();
+						endHandler.handle(null);
+					});
+				} else {
+					s.endHandler(null);
+				}
+				return this;
+			}
+
+			@Override
+			public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+				if (handler != null) {
+					s.exceptionHandler(err -> {
+						fail(err);
+						handler.handle(err);
+					});
+				} else {
+					s.exceptionHandler(null);
+				}
+				return this;
+			}
+
+			@Override
+			public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+				if (handler != null) {
+					s.handler(buff -> {
+						collect(buff);
+						handler.handle(buff);
+					});
+				} else {
+					s.handler(null);
+				}
+				return this;
+			}
+
+			@Override
+			public ReadStream<Buffer> pause() {
+				s.pause();
+				return this;
+			}
+
+			@Override
+			public ReadStream<Buffer> resume() {
+				s.resume();
+				return this;
+			}
+
+                @Override
+                public ReadStream<Buffer> fetch(long amount) {
+                    s.fetch(amount);
+                    return this;
+                }
+		};
+	}
+
+	HttpClientRequest request() {
+		return request(response());
+	}
+
+	/**
+	 * @param resp
+	 *            the response the request ends with, sent on the next tick
+	 */
+	HttpClientRequest request(CachedHttpClientResponse resp) {
+		return new HttpClientRequest() {
+			Handler<HttpClientResponse> responseHandler;
+
+			@Override
+			public String absoluteURI() {
+				return absoluteUri;
+			}
+
+			@Override
+			public HttpConnection connection() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest connectionHandler(Handler<HttpConnection> handler) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest continueHandler(Handler<Void> handler) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest drainHandler(Handler<Void> handler) {
+				return this;
+			}
+
+			@Override
+			public void end() {
+				responseHandler.handle(resp);
+				// Need a tick
+				Vertx.currentContext().runOnContext(v -> {
+					resp.send();
+				});
+			}
+
+			@Override
+			public void end(Buffer chunk) {
+				end();
+			}
+
+			@Override
+			public void end(String chunk) {
+				end();
+			}
+
+			@Override
+			public void end(String chunk, String enc) {
+				end();
+			}
+
+			@Override
+			public HttpClientRequest endHandler(Handler<Void> endHandler) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest exceptionHandler(Handler<Throwable> handler) {
+				return this;
+			}
+
+			@Override
+			public String getHost() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public String getRawMethod() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest handler(Handler<HttpClientResponse> handler) {
+				responseHandler = handler;
+				return this;
+			}
+
+			@Override
+			public MultiMap headers() {
+				return MultiMap.caseInsensitiveMultiMap();
+			}
+
+			@Override
+			public boolean isChunked() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpMethod method() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public String path() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest pause() {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest pushHandler(Handler<HttpClientRequest> handler) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest putHeader(CharSequence name, CharSequence value) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest putHeader(CharSequence name, Iterable<CharSequence> values) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest putHeader(String name, Iterable<String> values) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest putHeader(String name, String value) {
+				return this;
+			}
+
+			@Override
+			public String query() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public boolean reset(long code) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest resume() {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest sendHead() {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest sendHead(Handler<HttpVersion> completionHandler) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest setChunked(boolean chunked) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest setFollowRedirects(boolean followRedirects) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest setHost(String host) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest setRawMethod(String method) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest setTimeout(long timeoutMs) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public HttpClientRequest setWriteQueueMaxSize(int maxSize) {
+				return this;
+			}
+
+			@Override
+			public String uri() {
+				return uri;
+			}
+
+			@Override
+			public HttpClientRequest write(Buffer data) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest write(String chunk) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest write(String chunk, String enc) {
+				return this;
+			}
+
+			@Override
+			public HttpClientRequest writeCustomFrame(int type, int flags, Buffer payload) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public boolean writeQueueFull() {
+				return false;
+			}
+
+                @Override
+                public HttpClientRequest fetch(long amount) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public StreamPriority getStreamPriority() {
+                    throw new UnsupportedOperationException();
+                }
+		};
+	}
+
+	/**
+	 * @return a response replaying this resource, a compressed body gets
+	 *         decompressed. Its body stream takes over a reference the caller
+	 *         holds on this resource with send() or close() and drops it once
+	 *         the body has been read, failed or got closed. Callers only
+	 *         looking at status and headers call neither
+	 */
+	CachedHttpClientResponse response() {
+		return new Replay(-1, -1);
+	}
+
+	/**
+	 * @param first
+	 *            first byte of the range
+	 * @param last
+	 *            last byte of the range, included
+	 * @return a response streaming a range of the complete body as stored,
+	 *         with the same reference handling as {@link #response()}. The
+	 *         chunks are slices of the stored body for writing to a response,
+	 *         not copies, see {@link CachedBody#slice(int, int)}
+	 */
+	CachedHttpClientResponse read(long first, long last) {
+		return new Replay(first, last);
+	}
+
+	/**
+	 * Body stream for one client. A complete body goes out as heap copies,
+	 * chunk by chunk while the client keeps up, so nothing outside holds on to
+	 * the stored body once the reference is dropped
+	 */
+	private class Replay implements CachedHttpClientResponse {
+		final long first;
+		final long last;
+		Handler<Buffer> dataHandler;
+		Handler<Void> endHandler;
+		Handler<Throwable> exceptionHandler;
+		boolean paused;
+		boolean done;
+		boolean sending;
+		long position;
+		InputStream decoded;
+		Subscriber subscriber;
+
+		Replay(long first, long last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		public HttpClientResponse bodyHandler(Handler<Buffer> bodyHandler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<String> cookies() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse customFrameHandler(Handler<HttpFrame> handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse endHandler(Handler<Void> handler) {
+			endHandler = handler;
+			return this;
+		}
+
+		@Override
+		public HttpClientResponse exceptionHandler(Handler<Throwable> handler) {
+			exceptionHandler = handler;
+			return this;
+		}
+
+		@Override
+		public String getHeader(CharSequence headerName) {
+			return headers.get(headerName);
+		}
+
+		@Override
+		public String getHeader(String headerName) {
+			return headers.get(headerName);
+		}
+
+		@Override
+		public String getTrailer(String trailerName) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse handler(Handler<Buffer> handler) {
+			dataHandler = handler;
+			return this;
+		}
+
+		@Override
+		public MultiMap headers() {
+			return headers;
+		}
+
+		@Override
+		public NetSocket netSocket() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse pause() {
+			paused = true;
+			return this;
+		}
+
+		@Override
+		public HttpClientRequest request() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse resume() {
+			paused = false;
+			if (sending) {
+				emit();
+			}
+			return this;
+		}
+
+		@Override
+		public void send() {
+			if (done) {
+				return;
+			}
+			if (!replayable()) {
+				// Dropped as too big or failed, possibly after the end came in
+				finish(new IllegalStateException("Resource no longer available: " + absoluteUri));
+				return;
+			}
+			if (!complete) {
+				subscribe();
+				return;
+			}
+			if (first >= 0) {
+				position = first;
+			} else if (encoding != null) {
+				try {
+					// The compressed copy is small, decoding goes at the client's pace
+					decoded = BodyCompression.gunzip(content.copy());
+				} catch (IOException e) {
+					finish(e);
+					return;
+				}
+			}
+			sending = true;
+			emit();
+		}
+
+		@Override
+		public void close() {
+			if (done) {
+				return;
+			}
+			done = true;
+			decoded = null;
+			if (subscriber != null) {
+				subscribers.remove(subscriber);
+			}
+			release();
+		}
+
+		/**
+		 * Sends the body collected so far and, while the backend is still
+		 * streaming, keeps feeding the remaining chunks as they arrive
+		 */
+		void subscribe() {
+			if ((dataHandler != null) && (content.length() > 0)) {
+				// Copy, content keeps growing while the backend streams
+				dataHandler.handle(content.copy());
+			}
+			subscriber = new Subscriber(dataHandler, v -> finish(null), this::finish);
+			subscribers.add(subscriber);
+		}
+
+		/**
+		 * Writes chunks while the client keeps up, a pause stops here and
+		 * resume continues
+		 */
+		void emit() {
+			try {
+				while (!paused && !done) {
+					Buffer chunk = next();
+					if (chunk == null) {
+						finish(null);
+					} else if (dataHandler != null) {
+						dataHandler.handle(chunk);
+					}
+				}
+			} catch (IOException e) {
+				finish(e);
+			}
+		}
+
+		Buffer next() throws IOException {
+			if (decoded != null) {
+				return BodyCompression.read(decoded);
+			}
+			long end = (last >= 0) ? last : (content.length() - 1L);
+			if (position > end) {
+				return null;
+			}
+			int length = (int) Math.min(CHUNK_BYTES, end - position + 1);
+			int from = (int) position;
+			position += length;
+			if (first >= 0) {
+				// Read straight to the response, the slice holds the memory until written
+				return content.slice(from, from + length);
+			}
+			// Consumers may keep the chunk, it must not depend on the content
+			return content.buffer().getBuffer(from, from + length);
+		}
+
+		/**
+		 * Ends the stream. The reference goes after the handlers ran, so an end
+		 * handler can still take one of its own
+		 */
+		void finish(Throwable err) {
+			if (done) {
+				return;
+			}
+			done = true;
+			decoded = null;
+			if (err != null) {
+				if (exceptionHandler != null) {
+					exceptionHandler.handle(err);
+				}
+			} else if (endHandler != null) {
+				endHandler.handle(null);
+			}
+			release();
+		}
+
+		@Override
+		public int statusCode() {
+			return statusCode;
+		}
+
+		@Override
+		public String statusMessage() {
+			return statusMessage;
+		}
+
+		@Override
+		public MultiMap trailers() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpVersion version() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse fetch(long amount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HttpClientResponse streamPriorityHandler(Handler<StreamPriority> handler) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key the resource is cached under, the URL by default
+	 * @return this resource
+	 */
+	Resource keyed(String key) {
+		this.key = key;
+		return this;
+	}
+
+	/**
+	 * Sets how long past its max age this resource may still be served
+	 *
+	 * @param whileRevalidate
+	 *            milliseconds while a background revalidation runs
+	 * @param ifError
+	 *            milliseconds when the backend fails
+	 * @return this resource
+	 */
+	Resource staleFor(long whileRevalidate, long ifError) {
+		staleWhileRevalidate = Math.max(0, whileRevalidate);
+		staleIfError = Math.max(0, ifError);
+		return this;
+	}
+
+	boolean isFresh(long now) {
+		return (now - timestamp) <= maxAge;
+	}
+
+	boolean servableWhileRevalidating(long now) {
+		return (now - timestamp) <= (maxAge + staleWhileRevalidate);
+	}
+
+	boolean servableOnError(long now) {
+		return (now - timestamp) <= (maxAge + staleIfError);
+	}
+
+	/**
+	 * @return the time in milliseconds after which this resource can't be
+	 *         served anymore, not even stale
+	 */
+	long expiresAt() {
+		return timestamp + maxAge + Math.max(staleWhileRevalidate, staleIfError);
+	}
+
+	/**
+	 * Copy with the same body after the backend confirmed the resource is
+	 * unchanged (304). Headers sent along with the 304 replace the stored ones
+	 */
+	Resource refreshed(MultiMap updatedHeaders, long timestamp, long maxAge) {
+		MultiMap mergedHeaders = MultiMap.caseInsensitiveMultiMap().addAll(headers);
+		for (String name : updatedHeaders.names()) {
+			if (!name.equalsIgnoreCase("content-length") && !name.equalsIgnoreCase("transfer-encoding")) {
+				mergedHeaders.set(name, updatedHeaders.getAll(name));
+			}
+		}
+		Resource copy = new Resource(cache, absoluteUri, uri, statusCode, statusMessage, mergedHeaders, timestamp,
+				maxAge);
+		copy.content = content.retain();
+		copy.complete = true;
+		return copy.staleFor(staleWhileRevalidate, staleIfError).keyed(key).encodedAs(encoding);
+	}
+
+	/**
+	 * Copy with the body replaced by the same bytes from the body store
+	 *
+	 * @param body
+	 *            the shared body, the copy takes over the reference
+	 */
+	Resource shared(SharedBody body) {
+		return encoded(encoding, body);
+	}
+
+	/**
+	 * @return true when the body is in the body store
+	 */
+	boolean isShared() {
+		return content instanceof SharedBody;
+	}
+
+	/**
+	 * Copy with the body replaced by its compressed form. Headers keep
+	 * describing the plain body, it is decompressed for clients that don't
+	 * take the encoding
+	 *
+	 * @param encoding
+	 *            the content coding of the body
+	 * @param body
+	 *            the compressed body, the copy takes over its reference
+	 */
+	Resource encoded(String encoding, CachedBody body) {
+		Resource copy = new Resource(cache, absoluteUri, uri, statusCode, statusMessage, headers, timestamp, maxAge);
+		copy.content = body;
+		copy.complete = true;
+		return copy.staleFor(staleWhileRevalidate, staleIfError).keyed(key).encodedAs(encoding);
+	}
+
+	/**
+	 * @param encoding
+	 *            content coding of the stored body, null for none
+	 * @return this resource
+	 */
+	Resource encodedAs(String encoding) {
+		this.encoding = encoding;
+		return this;
+	}
+
+	/**
+	 * @return true when the stored body is compressed
+	 */
+	boolean isEncoded() {
+		return encoding != null;
+	}
+
+	/**
+	 * Handler called once this resource can't take new subscribers anymore:
+	 * the body completed, failed or got too big to be kept
+	 *
+	 * @param handler
+	 *            the handler
+	 */
+	void doneHandler(Handler<Void> handler) {
+		doneHandler = handler;
+	}
+
+	/**
+	 * @return true when a new client can still get the full body from here
+	 */
+	boolean replayable() {
+		return !oversized && !failed;
+	}
+
+	private void collect(Buffer buff) {
+		subscribers.forEach(sub -> {
+			if (sub.dataHandler != null) {
+				sub.dataHandler.handle(buff);
+			}
+		});
+		if (spool != null) {
+			if (!spool.append(buff, null)) {
+				spool = null;
+			}
+			return;
+		}
+		if (oversized) {
+			return;
+		}
+		if ((content.length() + buff.length()) > cache.maxEntryBytes(this)) {
+			// Too big for memory, stop collecting and let go of what we have.
+			// With a disk tier the body continues there
+			oversized = true;
+			CachedBody collected = content;
+			content = new HeapBody();
+			spool = cache.spool(this);
+			if (spool == null) {
+				collected.release();
+			} else if (!spool.append(collected.buffer(), collected::release) || !spool.append(buff, null)) {
+				spool = null;
+			}
+			done();
+		} else {
+			content.append(buff);
+		}
+	}
+
+	private void fail(Throwable err) {
+		if (complete) {
+			// The body is published and owned by the cache now, the error came
+			// from the client side, e.g. it went away before the end got written
+			return;
+		}
+		failed = true;
+		content.release();
+		content = new HeapBody();
+		if (spool != null) {
+			spool.abort();
+			spool = null;
+		}
+		subscribers.forEach(sub -> {
+			if (sub.exceptionHandler != null) {
+				sub.exceptionHandler.handle(err);
+			}
+		});
+		subscribers.clear();
+		done();
+	}
+
+	private void done() {
+		Handler<Void> handler = doneHandler;
+		doneHandler = null;
+		if (handler != null) {
+			handler.handle(null);
+		}
+	}
+
+	/**
+	 * Fills the resource with a body read back from disk
+	 *
+	 * @param body
+	 *            the body, the resource takes over its reference
+	 * @return this resource
+	 */
+	Resource completeWith(CachedBody body) {
+		content.release();
+		content = body;
+		complete = true;
+		return this;
+	}
+
+	/**
+	 * @return size of the body collected so far, as stored: compressed when
+	 *         the resource is encoded
+	 */
+	int length() {
+		return content.length();
+	}
+
+	/**
+	 * @return true once the whole body is in
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return true when this resource holds the filtered output of that raw
+	 *         resource version
+	 */
+	boolean derivedFrom(Resource raw) {
+		return (timestamp == raw.timestamp) && Objects.equals(etag, raw.etag);
+	}
+
+	/**
+	 * Copy with the body replaced by the output of the content filters
+	 *
+	 * @param output
+	 *            the filtered body, the copy takes over its reference
+	 */
+	Resource filtered(CachedBody output) {
+		MultiMap filteredHeaders = MultiMap.caseInsensitiveMultiMap();
+		headers.forEach(header -> {
+			String name = header.getKey();
+			if (!name.equalsIgnoreCase("content-length") && !name.equalsIgnoreCase("transfer-encoding")) {
+				filteredHeaders.add(name, header.getValue());
+			}
+		});
+		filteredHeaders.set(HttpHeaders.CONTENT_LENGTH, String.valueOf(output.length()));
+		Resource copy = new Resource(cache, absoluteUri, uri, statusCode, statusMessage, filteredHeaders, timestamp,
+				maxAge);
+		return copy.staleFor(staleWhileRevalidate, staleIfError).keyed(key).completeWith(output);
+	}
+
+	/**
+	 * Takes a reference on the body, for work that outlives the references on
+	 * the resource, e.g. writing it to disk
+	 *
+	 * @return the body, to be released when done
+	 */
+	CachedBody retainBody() {
+		return content.retain();
+	}
+
+	/**
+	 * Takes a reference on this resource for a request serving from it
+	 *
+	 * @return false when the last reference is gone already, the body must
+	 *         not be touched anymore
+	 */
+	boolean retain() {
+		for (;;) {
+			int count = references.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Drops a reference: the cache's when the entry is evicted, replaced or
+	 * removed, a request's when it is done with the body. The body is freed
+	 * with the last one
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			content.release();
+		}
+	}
+
+	/**
+	 * Approximate footprint of this entry, used by the cache to stay within
+	 * its byte budget
+	 *
+	 * @return size in bytes
+	 */
+	int weight() {
+		// A body from the store is charged once, by the cache, and not by
+		// every entry using it
+		long size = (isShared() ? 0L : content.length()) + (2L * (absoluteUri.length() + key.length()));
+		for (Map.Entry<String, String> header : headers) {
+			size += 2L * (header.getKey().length() + header.getValue().length());
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	boolean revalidate(ProxyResponse response) {
+		if ((etag != null) && (response.etag() != null)) {
+			boolean valid = etag.equals(response.etag());
+			if (!valid) {
+				cache.remove(key);
+			}
+			return valid;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,859 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import net.wissel.vertx.proxy.ResponseCache;
+
+/**
+ * Byte bounded response cache backed by Caffeine, which uses W-TinyLFU for
+ * admission and eviction. Entries are weighted by {@link Resource#weight()}
+ * and expire once they can't be served anymore, tracked in Caffeine's
+ * hierarchical timer wheel. All state is safe to use from several event
+ * loops at once, so verticle instances can share one cache
+ *
+ * @author swissel
+ *
+ */
+public class ResponseCacheImpl implements ResponseCache, Shareable {
+
+    private static final String FILTERED = "filtered:";
+    private static final String SHARED   = ResponseCache.class.getName();
+
+    /**
+     * What happened to a request the cache was asked about, counted for
+     * {@link ResponseCacheImpl#stats()}
+     */
+    enum Event {
+        /** Served from memory or disk without asking the target */
+        HIT("hits"),
+        /** Served stale while a background request revalidates */
+        STALE("staleHits"),
+        /** Served stale because the target failed */
+        STALE_ON_ERROR("staleOnError"),
+        /** Sent to the target */
+        MISS("misses"),
+        /** Waited for a request to the target already running */
+        COALESCED("coalesced"),
+        /** Conditional request to the target for a cached entry */
+        REVALIDATION("revalidations");
+
+        final String label;
+
+        Event(final String label) {
+            this.label = label;
+        }
+    }
+
+    private final Cache<String, Resource>      cache;
+    private final Cache<String, Boolean>       passKeys;
+    private final Cache<String, Resource>      negative;
+    private final PrivatePartition             privates;
+    private final Map<String, Long>            negativeTtl      = new HashMap<>();
+    private final long                         negativeMaxEntryBytes;
+    private final long                         maxBytes;
+    private final long                         maxEntryBytes;
+    private final long                         coalesceTimeout;
+    private final long                         revalidateTimeout;
+    private final boolean                      offHeap;
+    private final DiskTier                     disk;
+    private final Snapshot                     snapshot;
+    private final CacheKeys                    keys;
+    private final BodyCompression              compression;
+    private final BodyStore                    bodies;
+    private final Vertx                        vertx;
+    private final CachePolicy                  defaultPolicy;
+    private final List<CachePolicy>            routes           = new ArrayList<>();
+    private final Map<Event, LongAdder>        events           = new EnumMap<>(Event.class);
+    private final Map<RemovalCause, LongAdder> removals         = new EnumMap<>(RemovalCause.class);
+    private final Map<RemovalCause, LongAdder> negativeRemovals = new EnumMap<>(RemovalCause.class);
+    private final AtomicBoolean                loaded           = new AtomicBoolean();
+    private final AtomicBoolean                saving           = new AtomicBoolean();
+
+    public ResponseCacheImpl(final Vertx vertx, final JsonObject config) {
+        final JsonObject options = (config == null) ? new JsonObject() : config;
+        this.vertx = vertx;
+        this.maxBytes = options.getLong("maxBytes", ResponseCache.DEFAULT_MAX_BYTES);
+        this.maxEntryBytes = options.getLong("maxEntryBytes", this.maxBytes / 8);
+        this.coalesceTimeout = options.getLong("coalesceTimeout", 5000L);
+        this.revalidateTimeout = options.getLong("revalidateTimeout", 10000L);
+        this.keys = new CacheKeys(options.getJsonObject("key", new JsonObject()));
+        this.offHeap = "offheap".equalsIgnoreCase(options.getString("storage", "heap"));
+        final JsonObject diskConfig = options.getJsonObject("disk");
+        this.disk = (diskConfig == null) ? null : new DiskTier(vertx, this, diskConfig);
+        final JsonObject compressConfig = options.getJsonObject("compress");
+        this.compression = (compressConfig == null) ? null : new BodyCompression(compressConfig, this.offHeap);
+        this.bodies = options.getBoolean("dedup", true) ? new BodyStore() : null;
+        final String snapshotFile = options.getString("snapshot");
+        this.snapshot = (snapshotFile == null) ? null : new Snapshot(this, Paths.get(snapshotFile));
+        this.defaultPolicy = new CachePolicy(options, null);
+        final JsonArray routeConfig = options.getJsonArray("routes", new JsonArray());
+        routeConfig.forEach(o -> this.routes.add(new CachePolicy((JsonObject) o, this.defaultPolicy)));
+        // All counters exist upfront, so the maps are only read concurrently
+        for (final Event event : Event.values()) {
+            this.events.put(event, new LongAdder());
+        }
+        for (final RemovalCause cause : RemovalCause.values()) {
+            this.removals.put(cause, new LongAdder());
+            this.negativeRemovals.put(cause, new LongAdder());
+        }
+        // Maintenance runs on the calling thread, so evictions happen on the
+        // event loop that touched the cache and not on the common pool
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(this.maxBytes)
+                .weigher((String key, Resource resource) -> resource.weight())
+                .executor(Runnable::run)
+                .expireAfter(new ResourceExpiry())
+                // Evicted entries move to disk. The cache drops its reference,
+                // requests still serving from an entry hold their own
+                .removalListener((String key, Resource resource, RemovalCause cause) -> {
+                    this.removals.get(cause).increment();
+                    if (resource == null) {
+                        return;
+                    }
+                    final long now = System.currentTimeMillis();
+                    if ((cause == RemovalCause.SIZE) && (this.disk != null) && !key.startsWith(ResponseCacheImpl.FILTERED)
+                            && (resource.servableWhileRevalidating(now) || resource.servableOnError(now))) {
+                        this.disk.spill(key, resource);
+                    }
+                    resource.release();
+                })
+                .build();
+        // Keys that recently came back uncacheable aren't worth holding
+        // concurrent requests for
+        this.passKeys = Caffeine.newBuilder()
+                .maximumSize(options.getLong("passKeys", 10000L))
+                .expireAfterWrite(options.getLong("passSeconds", 60L), TimeUnit.SECONDS)
+                .executor(Runnable::run)
+                .build();
+        // Error responses get their own budget, so a burst of them can't push
+        // good entries out
+        final JsonObject negativeConfig = options.getJsonObject("negative");
+        if (negativeConfig == null) {
+            this.negative = null;
+            this.negativeMaxEntryBytes = 0;
+        } else {
+            final long negativeMaxBytes = negativeConfig.getLong("maxBytes", 1048576L);
+            this.negativeMaxEntryBytes = negativeConfig.getLong("maxEntryBytes", negativeMaxBytes / 8);
+            negativeConfig.getJsonObject("ttl", new JsonObject()).forEach(
+                    ttl -> this.negativeTtl.put(ttl.getKey().toLowerCase(), ((Number) ttl.getValue()).longValue() * 1000));
+            this.negative = Caffeine.newBuilder()
+                    .maximumWeight(negativeMaxBytes)
+                    .weigher((String key, Resource resource) -> resource.weight())
+                    .executor(Runnable::run)
+                    .expireAfter(new ResourceExpiry())
+                    .removalListener((String key, Resource resource, RemovalCause cause) -> {
+                        this.negativeRemovals.get(cause).increment();
+                        if (resource != null) {
+                            resource.release();
+                        }
+                    })
+                    .build();
+        }
+        final JsonObject privateConfig = options.getJsonObject("private");
+        this.privates = (privateConfig == null) ? null : new PrivatePartition(privateConfig, Resource::release);
+        // Expired entries are only dropped during maintenance, which otherwise
+        // needs traffic. The timer wheel only visits the buckets that are due,
+        // so a tick costs the number of expired entries, not the cache size
+        final long expiryInterval = options.getLong("expiryInterval", 1000L);
+        if (expiryInterval > 0) {
+            vertx.setPeriodic(expiryInterval, id -> {
+                this.cache.cleanUp();
+                this.passKeys.cleanUp();
+                if (this.negative != null) {
+                    this.negative.cleanUp();
+                }
+                if (this.privates != null) {
+                    this.privates.cleanUp();
+                }
+            });
+        }
+    }
+
+    /**
+     * Expires a resource when its max age and the longer of its stale windows
+     * have passed. Reads don't extend the lifetime
+     */
+    static class ResourceExpiry implements Expiry<String, Resource> {
+
+        @Override
+        public long expireAfterCreate(final String key, final Resource resource, final long currentTime) {
+            final long remaining = resource.expiresAt() - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remaining));
+        }
+
+        @Override
+        public long expireAfterRead(final String key, final Resource resource, final long currentTime,
+                final long currentDuration) {
+            return currentDuration;
+        }
+
+        @Override
+        public long expireAfterUpdate(final String key, final Resource resource, final long currentTime,
+                final long currentDuration) {
+            return this.expireAfterCreate(key, resource, currentTime);
+        }
+
+    }
+
+    /**
+     * @see ResponseCache#shared(Vertx, JsonObject)
+     */
+    public static ResponseCacheImpl shared(final Vertx vertx, final JsonObject config) {
+        final LocalMap<String, ResponseCacheImpl> caches = vertx.sharedData().getLocalMap(ResponseCacheImpl.SHARED);
+        // Atomic, a second cache would wipe the disk tier of the first
+        return caches.computeIfAbsent(ResponseCacheImpl.SHARED, name -> new ResponseCacheImpl(vertx, config));
+    }
+
+    /**
+     * Key for the output of a filter chain, the fingerprint changes with the
+     * filter configuration
+     *
+     * @param key
+     *            key of the raw resource
+     * @param fingerprint
+     *            fingerprint of the filter chain
+     * @return the key
+     */
+    static String filteredKey(final String key, final String fingerprint) {
+        return ResponseCacheImpl.FILTERED + fingerprint + ":" + key;
+    }
+
+    private static long weightedSize(final Cache<String, Resource> cache) {
+        return cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+    }
+
+    private static JsonObject removals(final Map<RemovalCause, LongAdder> removals) {
+        final JsonObject result = new JsonObject();
+        removals.forEach((cause, count) -> result.put(cause.name().toLowerCase(Locale.ROOT), count.sum()));
+        return result;
+    }
+
+    @Override
+    public long bytes() {
+        return ResponseCacheImpl.weightedSize(this.cache) + ((this.bodies == null) ? 0 : this.bodies.bytes());
+    }
+
+    @Override
+    public void clear() {
+        this.cache.invalidateAll();
+        this.passKeys.invalidateAll();
+        if (this.negative != null) {
+            this.negative.invalidateAll();
+        }
+        if (this.privates != null) {
+            this.privates.clear();
+        }
+        this.keys.clear();
+        if (this.disk != null) {
+            this.disk.clear();
+        }
+    }
+
+    /**
+     * Counts what happened to a request
+     *
+     * @param event
+     *            the outcome
+     */
+    void count(final Event event) {
+        this.events.get(event).increment();
+    }
+
+    /**
+     * @return milliseconds a request waits for a backend request in flight
+     *         for the same key before it goes to the backend itself, 0 = off
+     */
+    public long coalesceTimeout() {
+        return this.coalesceTimeout;
+    }
+
+    /**
+     * @return milliseconds a background revalidation may take without data
+     *         from the target before it is given up
+     */
+    long revalidateTimeout() {
+        return this.revalidateTimeout;
+    }
+
+    @Override
+    public long diskBytes() {
+        return (this.disk == null) ? 0 : this.disk.bytes();
+    }
+
+    @Override
+    public long diskEntries() {
+        return (this.disk == null) ? 0 : this.disk.entries();
+    }
+
+    @Override
+    public long entries() {
+        return this.cache.estimatedSize();
+    }
+
+    @Override
+    public long purge(final String url) {
+        final String base = this.keys.normalize(url);
+        return this.purgeIf(base::equals);
+    }
+
+    @Override
+    public long purgePrefix(final String prefix) {
+        return this.purgeIf(url -> url.startsWith(prefix));
+    }
+
+    @Override
+    public long purgeMatching(final Pattern pattern) {
+        return this.purgeIf(url -> pattern.matcher(url).find());
+    }
+
+    /**
+     * Drops the entries of all URLs that match, with all their variants and
+     * filtered output, from every tier
+     *
+     * @param urls
+     *            gets the normalized URL of each entry
+     * @return the number of entries dropped
+     */
+    private long purgeIf(final Predicate<String> urls) {
+        final Predicate<String> keys = key -> urls.test(ResponseCacheImpl.url(key));
+        long purged = ResponseCacheImpl.purgeIf(this.cache, keys);
+        if (this.negative != null) {
+            purged += ResponseCacheImpl.purgeIf(this.negative, keys);
+        }
+        if (this.disk != null) {
+            purged += this.disk.removeIf(keys);
+        }
+        if (this.privates != null) {
+            purged += this.privates.removeIf(keys);
+        }
+        return purged;
+    }
+
+    private static long purgeIf(final Cache<String, Resource> cache, final Predicate<String> keys) {
+        long purged = 0;
+        for (final String key : cache.asMap().keySet()) {
+            if (keys.test(key) && (cache.asMap().remove(key) != null)) {
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * @param key
+     *            a cache key, raw or filtered
+     * @return the normalized URL the key belongs to
+     */
+    private static String url(final String key) {
+        final String raw = ResponseCacheImpl.unfiltered(key);
+        return CacheKeys.base(PrivatePartition.isPrivate(raw) ? PrivatePartition.shared(raw) : raw);
+    }
+
+    /**
+     * @param key
+     *            a cache key
+     * @return the key of the raw resource for a filtered output key, else the
+     *         key itself
+     */
+    static String unfiltered(final String key) {
+        if (key.startsWith(ResponseCacheImpl.FILTERED)) {
+            // The fingerprint is hex, the next colon ends it
+            return key.substring(key.indexOf(':', ResponseCacheImpl.FILTERED.length()) + 1);
+        }
+        return key;
+    }
+
+    @Override
+    public JsonObject stats() {
+        final JsonObject requests = new JsonObject();
+        this.events.forEach((event, count) -> requests.put(event.label, count.sum()));
+        final JsonObject result = new JsonObject()
+                .put("entries", this.entries())
+                .put("bytes", this.bytes())
+                .put("maxBytes", this.maxBytes)
+                .put("requests", requests)
+                .put("evictions", ResponseCacheImpl.removals(this.removals));
+        if (this.negative != null) {
+            result.put("negative", new JsonObject()
+                    .put("entries", this.negative.estimatedSize())
+                    .put("bytes", ResponseCacheImpl.weightedSize(this.negative))
+                    .put("evictions", ResponseCacheImpl.removals(this.negativeRemovals)));
+        }
+        if (this.privates != null) {
+            result.put("private", this.privates.stats());
+        }
+        if (this.disk != null) {
+            result.put("disk", new JsonObject()
+                    .put("entries", this.diskEntries())
+                    .put("bytes", this.diskBytes()));
+        }
+        if (this.bodies != null) {
+            result.put("sharedBodies", this.bodies.size())
+                    .put("sharedBytes", this.bodies.bytes());
+        }
+        return result;
+    }
+
+    @Override
+    public void load(final Handler<AsyncResult<Long>> handler) {
+        // Once per cache, not once per instance sharing it
+        if ((this.snapshot == null) || !this.loaded.compareAndSet(false, true)) {
+            handler.handle(Future.succeededFuture(0L));
+            return;
+        }
+        this.vertx.<List<Snapshot.Record>>executeBlocking(fut -> {
+            try {
+                fut.complete(this.snapshot.read(System.currentTimeMillis()));
+            } catch (final IOException e) {
+                fut.fail(e);
+            }
+        }, false, ar -> {
+            if (ar.failed()) {
+                handler.handle(Future.failedFuture(ar.cause()));
+                return;
+            }
+            long loaded = 0;
+            for (final Snapshot.Record record : ar.result()) {
+                // Requests served since the start have the fresher entries
+                if (this.cache.asMap().putIfAbsent(record.key, record.resource) == null) {
+                    loaded++;
+                    this.deduplicate(record.key, record.resource);
+                    final List<String> varyNames = CacheKeys.varyNames(record.resource.headers);
+                    if (!record.key.startsWith(ResponseCacheImpl.FILTERED) && (varyNames != null)) {
+                        this.keys.vary(CacheKeys.base(record.key), varyNames);
+                    }
+                } else {
+                    record.body.release();
+                }
+            }
+            handler.handle(Future.succeededFuture(loaded));
+        });
+    }
+
+    /**
+     * @return the cache key builder
+     */
+    CacheKeys keys() {
+        return this.keys;
+    }
+
+    /**
+     * @return the configured byte budget
+     */
+    public long maxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the largest body that will be collected for the cache
+     */
+    public long maxEntryBytes() {
+        return this.maxEntryBytes;
+    }
+
+    @Override
+    public void save(final Handler<AsyncResult<Long>> handler) {
+        // Instances sharing the cache stop together, one of them writes
+        if ((this.snapshot == null) || !this.saving.compareAndSet(false, true)) {
+            handler.handle(Future.succeededFuture(0L));
+            return;
+        }
+        // Hottest first, so a smaller budget on the next start keeps those
+        final Map<String, Resource> entries = this.cache.policy().eviction()
+                .map(eviction -> eviction.hottest(Integer.MAX_VALUE))
+                .orElse(this.cache.asMap());
+        final List<Snapshot.Record> records = new ArrayList<>();
+        entries.forEach((key, resource) -> {
+            final CachedBody body = ResponseCacheImpl.retainBody(resource);
+            if (body != null) {
+                records.add(new Snapshot.Record(key, resource, body));
+            }
+        });
+        this.vertx.<Long>executeBlocking(fut -> {
+            try {
+                fut.complete(this.snapshot.write(records));
+            } catch (final IOException e) {
+                fut.fail(e);
+            } finally {
+                this.saving.set(false);
+            }
+        }, false, handler);
+    }
+
+    /**
+     * @param statusCode
+     *            status of the response
+     * @return the largest body kept in memory for a response with the status
+     */
+    long maxEntryBytes(final int statusCode) {
+        return this.isNegative(statusCode) ? this.negativeMaxEntryBytes : this.maxEntryBytes;
+    }
+
+    /**
+     * @param resource
+     *            a resource with its key
+     * @return the largest body kept in memory for the resource, private ones
+     *         have to fit the session quota
+     */
+    long maxEntryBytes(final Resource resource) {
+        return PrivatePartition.isPrivate(resource.key)
+                ? Math.min(this.maxEntryBytes, this.privates.maxEntryBytes())
+                : this.maxEntryBytes(resource.statusCode);
+    }
+
+    /**
+     * @param statusCode
+     *            status of the response
+     * @return the largest body kept by any tier for a response with the status
+     */
+    public long maxBodyBytes(final int statusCode) {
+        return ((this.disk == null) || this.isNegative(statusCode)) ? this.maxEntryBytes(statusCode)
+                : Math.max(this.maxEntryBytes, this.disk.maxEntryBytes());
+    }
+
+    /**
+     * @param statusCode
+     *            status of an uncacheable response
+     * @return milliseconds the response is kept as negative entry, 0 for not
+     *         at all. The exact status is looked up first, then the class
+     *         like 5xx
+     */
+    long negativeTtl(final int statusCode) {
+        if (!this.isNegative(statusCode)) {
+            return 0;
+        }
+        Long ttl = this.negativeTtl.get(String.valueOf(statusCode));
+        if (ttl == null) {
+            ttl = this.negativeTtl.get((statusCode / 100) + "xx");
+        }
+        return (ttl == null) ? 0 : Math.max(0, ttl);
+    }
+
+    /**
+     * @param requestHeaders
+     *            the request headers
+     * @param key
+     *            the shared cache key of the request
+     * @return the key in the private partition, null without partition or
+     *         when the request has no session
+     */
+    String privateKey(final MultiMap requestHeaders, final String key) {
+        return (this.privates == null) ? null : this.privates.key(requestHeaders, key);
+    }
+
+    /**
+     * @return milliseconds a private response without freshness information
+     *         is kept, 0 for not at all
+     */
+    long privateTtl() {
+        return (this.privates == null) ? 0 : this.privates.ttl();
+    }
+
+    /**
+     * @return true when responses with the status go to the negative cache
+     */
+    private boolean isNegative(final int statusCode) {
+        return (this.negative != null) && (statusCode >= 400);
+    }
+
+    /**
+     * @return true when bodies are kept in pooled direct memory
+     */
+    public boolean offHeap() {
+        return this.offHeap;
+    }
+
+    /**
+     * @param uri
+     *            the request URI
+     * @return the first route policy matching the URI or the cache wide one
+     */
+    CachePolicy policy(final String uri) {
+        for (final CachePolicy route : this.routes) {
+            if (route.matches(uri)) {
+                return route;
+            }
+        }
+        return this.defaultPolicy;
+    }
+
+    boolean isPass(final String key) {
+        return this.passKeys.getIfPresent(key) != null;
+    }
+
+    void markPass(final String key) {
+        this.passKeys.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the entry with a reference taken for the caller, to be released
+     *         once it is done with the body. Null when there is none or it
+     *         got evicted and freed meanwhile
+     */
+    Resource get(final String key) {
+        final Resource resource;
+        if (PrivatePartition.isPrivate(key)) {
+            resource = (this.privates == null) ? null : this.privates.get(key);
+        } else {
+            final Resource shared = this.cache.getIfPresent(key);
+            resource = ((shared != null) || (this.negative == null)) ? shared : this.negative.getIfPresent(key);
+        }
+        return ((resource != null) && resource.retain()) ? resource : null;
+    }
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the disk record for a key missing in memory, null if none
+     */
+    DiskTier.Entry getFromDisk(final String key) {
+        return (this.disk == null) ? null : this.disk.get(key);
+    }
+
+    /**
+     * Reads a disk record back
+     *
+     * @see DiskTier#load(DiskTier.Entry, boolean, Handler)
+     */
+    void load(final DiskTier.Entry entry, final boolean withBody, final Handler<AsyncResult<Resource>> handler) {
+        this.disk.load(entry, withBody, handler);
+    }
+
+    /**
+     * Moves a resource read back from disk into memory
+     */
+    void promote(final String key, final Resource resource) {
+        this.disk.remove(key);
+        this.cache.put(key, resource);
+    }
+
+    /**
+     * @param resource
+     *            a resource too large for memory
+     * @return a spool writing it to disk, null without disk tier
+     */
+    DiskTier.Spool spool(final Resource resource) {
+        // Private responses never leave memory
+        return ((this.disk == null) || this.isNegative(resource.statusCode) || PrivatePartition.isPrivate(resource.key))
+                ? null
+                : this.disk.spool(resource);
+    }
+
+    void put(final String key, final Resource resource) {
+        if (PrivatePartition.isPrivate(key)) {
+            this.privates.put(key, resource);
+            return;
+        }
+        if (this.isNegative(resource.statusCode)) {
+            this.negative.put(key, resource);
+            return;
+        }
+        this.rebudget();
+        this.cache.put(key, resource);
+        if (this.negative != null) {
+            // The target recovered
+            this.negative.invalidate(key);
+        }
+        // Admission may have turned the resource away right away
+        if (this.cache.policy().getIfPresentQuietly(key) != resource) {
+            return;
+        }
+        if ((this.compression != null) && this.compression.applies(resource)) {
+            this.compress(key, resource);
+        } else {
+            this.deduplicate(key, resource);
+        }
+    }
+
+    /**
+     * Compresses the body of a cached resource on a worker thread and swaps
+     * the compressed copy in, unless the entry changed in between. Hits keep
+     * getting the plain body until then
+     */
+    private void compress(final String key, final Resource resource) {
+        final CachedBody body = ResponseCacheImpl.retainBody(resource);
+        if (body == null) {
+            return;
+        }
+        this.vertx.<CachedBody>executeBlocking(fut -> {
+            try {
+                fut.complete(this.compression.gzip(body));
+            } catch (final IOException e) {
+                fut.fail(e);
+            } finally {
+                body.release();
+            }
+        }, false, ar -> {
+            if (ar.failed()) {
+                return;
+            }
+            if (ar.result() == null) {
+                // Not worth it, stays plain
+                this.deduplicate(key, resource);
+                return;
+            }
+            final Resource encoded = resource.encoded(BodyCompression.GZIP, ar.result());
+            if (this.cache.asMap().replace(key, resource, encoded)) {
+                this.deduplicate(key, encoded);
+            } else {
+                encoded.release();
+            }
+        });
+    }
+
+    /**
+     * Hashes the body of a cached resource on a worker thread and moves it to
+     * the body store. When the store has the same bytes already, the entry
+     * switches to those and its own copy is freed
+     */
+    private void deduplicate(final String key, final Resource resource) {
+        if ((this.bodies == null) || resource.isShared() || !resource.isComplete()) {
+            return;
+        }
+        final CachedBody body = ResponseCacheImpl.retainBody(resource);
+        if (body == null) {
+            return;
+        }
+        this.vertx.<String>executeBlocking(fut -> {
+            try {
+                fut.complete(BodyStore.hash(body));
+            } finally {
+                body.release();
+            }
+        }, false, ar -> {
+            if (ar.failed() || (this.cache.policy().getIfPresentQuietly(key) != resource)) {
+                return;
+            }
+            // Same bytes in another coding are a different body
+            final String address = resource.isEncoded() + ":" + ar.result();
+            final SharedBody existing = this.bodies.lookup(address, resource.length());
+            final CachedBody own = (existing != null) ? null : ResponseCacheImpl.retainBody(resource);
+            if ((existing == null) && (own == null)) {
+                return;
+            }
+            final Resource shared = resource.shared((existing != null) ? existing : this.bodies.add(address, own));
+            if (!this.cache.asMap().replace(key, resource, shared)) {
+                shared.release();
+            }
+            this.rebudget();
+        });
+    }
+
+    /**
+     * Takes the bytes of the body store off the budget of the entries, so a
+     * body shared by many entries is charged once. Bodies leave the store
+     * from inside evictions, the budget follows on the next put rather than
+     * re-entering the cache from there
+     */
+    private void rebudget() {
+        if (this.bodies == null) {
+            return;
+        }
+        final long budget = Math.max(0L, this.maxBytes - this.bodies.bytes());
+        this.cache.policy().eviction().ifPresent(eviction -> {
+            if (eviction.getMaximum() != budget) {
+                eviction.setMaximum(budget);
+            }
+        });
+    }
+
+    /**
+     * Takes a reference on the body of an entry for work off the request
+     * path. Another event loop may evict and free the entry any time, so the
+     * resource is retained first
+     *
+     * @return the body, to be released when done, null when the entry got
+     *         freed meanwhile
+     */
+    private static CachedBody retainBody(final Resource resource) {
+        if (!resource.retain()) {
+            return null;
+        }
+        try {
+            return resource.retainBody();
+        } finally {
+            resource.release();
+        }
+    }
+
+    /**
+     * Drops all filtered output, e.g. when the filters got replaced
+     */
+    void removeFiltered() {
+        this.cache.asMap().keySet().removeIf(key -> key.startsWith(ResponseCacheImpl.FILTERED));
+        if (this.privates != null) {
+            this.privates.removeIf(key -> key.startsWith(ResponseCacheImpl.FILTERED));
+        }
+        if (this.negative != null) {
+            this.negative.asMap().keySet().removeIf(key -> key.startsWith(ResponseCacheImpl.FILTERED));
+        }
+    }
+
+    void remove(final String key) {
+        if (PrivatePartition.isPrivate(key)) {
+            if (this.privates != null) {
+                this.privates.remove(key);
+            }
+            return;
+        }
+        this.cache.invalidate(key);
+        if (this.negative != null) {
+            this.negative.invalidate(key);
+        }
+        if (this.disk != null) {
+            this.disk.remove(key);
+        }
+    }
+
+}
@@ -11,492 +11,91 @@ package net.wissel.vertx.proxy.impl;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
-import io.vertx.core.http.HttpConnection;
-import io.vertx.core.http.HttpFrame;
 import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
-import io.vertx.core.http.HttpVersion;
-import io.vertx.core.http.StreamPriority;
-import io.vertx.core.net.NetSocket;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import io.vertx.core.net.SocketAddress;
-import io.vertx.core.net.impl.SocketAddressImpl;
+import io.vertx.core.streams.Pump;
 import io.vertx.core.streams.ReadStream;
+import io.vertx.core.net.impl.SocketAddressImpl;
 import net.wissel.vertx.proxy.HttpRequestResponse;
 import net.wissel.vertx.proxy.ProxyFilter;
 import net.wissel.vertx.proxy.ProxyRequest;
 import net.wissel.vertx.proxy.ProxyResponse;
 import net.wissel.vertx.proxy.SfdcHttpProxy;
+import net.wissel.vertx.proxy.filters.FilterWorker;
 
 /**
  * @author <a href="mailto:julien@julienviet.com">Julien Viet</a>
  */
 public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 
-	private class Resource implements Function<ReadStream<Buffer>, ReadStream<Buffer>> {
-
-		private final String absoluteUri;
-		private final int statusCode;
-		private final String statusMessage;
-		private final MultiMap headers;
-		private final long timestamp;
-		private final long maxAge;
-		private final Date lastModified;
-		private final String etag;
-		private Buffer content = Buffer.buffer();
-
-		public Resource(String absoluteUri, int statusCode, String statusMessage, MultiMap headers, long timestamp,
-				long maxAge) {
-			String lastModifiedHeader = headers.get(HttpHeaders.LAST_MODIFIED);
-			this.absoluteUri = absoluteUri;
-			this.statusCode = statusCode;
-			this.statusMessage = statusMessage;
-			this.headers = headers;
-			this.timestamp = timestamp;
-			this.maxAge = maxAge;
-			lastModified = lastModifiedHeader != null ? ParseUtils.parseHeaderDate(lastModifiedHeader) : null;
-			etag = headers.get(HttpHeaders.ETAG);
-		}
-
-		@Override
-		public ReadStream<Buffer> apply(ReadStream<Buffer> s) {
-			return new ReadStream<Buffer>() {
-				@Override
-				public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
-					if (endHandler != null) {
-						s.endHandler(v -> {
-							cache.put(absoluteUri, Resource.this);
-							endHandler.handle(null);
-						});
-					} else {
-						s.endHandler(null);
-					}
-					return this;
-				}
-
-				@Override
-				public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
-					s.exceptionHandler(handler);
-					return this;
-				}
-
-				@Override
-				public ReadStream<Buffer> handler(Handler<Buffer> handler) {
-					if (handler != null) {
-						s.handler(buff -> {
-							content.appendBuffer(buff);
-							handler.handle(buff);
-						});
-					} else {
-						s.handler(null);
-					}
-					return this;
-				}
-
-				@Override
-				public ReadStream<Buffer> pause() {
-					s.pause();
-					return this;
-				}
-
-				@Override
-				public ReadStream<Buffer> resume() {
-					s.resume();
-					return this;
-				}
-
-                @Override
-                public ReadStream<Buffer> fetch(long amount) {
-                    s.fetch(amount);
-                    return this;
-                }
-			};
+	/**
+	 * A backend request in flight for a cache key, with the clients that missed
+	 * on the same key while it was running
+	 */
+	private static class Flight {
+		final String key;
+		final Map<HttpServerRequest, Long> waiting = new LinkedHashMap<>();
+		Resource resource;
+
+		Flight(String key) {
+			this.key = key;
 		}
-
-		HttpClientRequest request() {
-			return new HttpClientRequest() {
-				Handler<HttpClientResponse> responseHandler;
-
-				@Override
-				public String absoluteURI() {
-					return null;
-				}
-
-				@Override
-				public HttpConnection connection() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest connectionHandler(Handler<HttpConnection> handler) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest continueHandler(Handler<Void> handler) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest drainHandler(Handler<Void> handler) {
-					return this;
-				}
-
-				@Override
-				public void end() {
-					CachedHttpClientResponse resp = response();
-					responseHandler.handle(resp);
-					// Need a tick
-					Vertx.currentContext().runOnContext(v -> {
-						resp.send();
-					});
-				}
-
-				@Override
-				public void end(Buffer chunk) {
-					end();
-				}
-
-				@Override
-				public void end(String chunk) {
-					end();
-				}
-
-				@Override
-				public void end(String chunk, String enc) {
-					end();
-				}
-
-				@Override
-				public HttpClientRequest endHandler(Handler<Void> endHandler) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest exceptionHandler(Handler<Throwable> handler) {
-					return this;
-				}
-
-				@Override
-				public String getHost() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public String getRawMethod() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest handler(Handler<HttpClientResponse> handler) {
-					responseHandler = handler;
-					return this;
-				}
-
-				@Override
-				public MultiMap headers() {
-					return MultiMap.caseInsensitiveMultiMap();
-				}
-
-				@Override
-				public boolean isChunked() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpMethod method() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public String path() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest pause() {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest pushHandler(Handler<HttpClientRequest> handler) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest putHeader(CharSequence name, CharSequence value) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest putHeader(CharSequence name, Iterable<CharSequence> values) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest putHeader(String name, Iterable<String> values) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest putHeader(String name, String value) {
-					return this;
-				}
-
-				@Override
-				public String query() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public boolean reset(long code) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest resume() {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest sendHead() {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest sendHead(Handler<HttpVersion> completionHandler) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest setChunked(boolean chunked) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest setFollowRedirects(boolean followRedirects) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest setHost(String host) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest setRawMethod(String method) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest setTimeout(long timeoutMs) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest setWriteQueueMaxSize(int maxSize) {
-					return this;
-				}
-
-				@Override
-				public String uri() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientRequest write(Buffer data) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest write(String chunk) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest write(String chunk, String enc) {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest writeCustomFrame(int type, int flags, Buffer payload) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public boolean writeQueueFull() {
-					return false;
-				}
-
-                @Override
-                public HttpClientRequest fetch(long amount) {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public StreamPriority getStreamPriority() {
-                    throw new UnsupportedOperationException();
-                }
-			};
-		}
-
-		CachedHttpClientResponse response() {
-			return new CachedHttpClientResponse() {
-				Handler<Buffer> dataHandler;
-				Handler<Void> endHandler;
-
-				@Override
-				public HttpClientResponse bodyHandler(Handler<Buffer> bodyHandler) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public List<String> cookies() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientResponse customFrameHandler(Handler<HttpFrame> handler) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientResponse endHandler(Handler<Void> handler) {
-					endHandler = handler;
-					return this;
-				}
-
-				@Override
-				public HttpClientResponse exceptionHandler(Handler<Throwable> handler) {
-					return this;
-				}
-
-				@Override
-				public String getHeader(CharSequence headerName) {
-					return headers.get(headerName);
-				}
-
-				@Override
-				public String getHeader(String headerName) {
-					return headers.get(headerName);
-				}
-
-				@Override
-				public String getTrailer(String trailerName) {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientResponse handler(Handler<Buffer> handler) {
-					dataHandler = handler;
-					return this;
-				}
-
-				@Override
-				public MultiMap headers() {
-					return headers;
-				}
-
-				@Override
-				public NetSocket netSocket() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientResponse pause() {
-					return this;
-				}
-
-				@Override
-				public HttpClientRequest request() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpClientResponse resume() {
-					return this;
-				}
-
-				@Override
-				public void send() {
-					if (dataHandler != null) {
-						dataHandler.handle(content);
-					}
-					if (endHandler != null) {
-						endHandler.handle(null);
-					}
-				}
-
-				@Override
-				public int statusCode() {
-					return statusCode;
-				}
-
-				@Override
-				public String statusMessage() {
-					return statusMessage;
-				}
-
-				@Override
-				public MultiMap trailers() {
-					throw new UnsupportedOperationException();
-				}
-
-				@Override
-				public HttpVersion version() {
-					throw new UnsupportedOperationException();
-				}
-
-                @Override
-                public HttpClientResponse fetch(long amount) {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public HttpClientResponse streamPriorityHandler(Handler<StreamPriority> handler) {
-                    throw new UnsupportedOperationException();
-                }
-			};
-		}
-
-		boolean revalidate(ProxyResponse response) {
-			if ((etag != null) && (response.etag() != null)) {
-				boolean valid = etag.equals(response.etag());
-				if (!valid) {
-					cache.remove(absoluteUri);
-				}
-				return valid;
-			}
-			return true;
-		}
-
 	}
 
+	private static final String WARNING_STALE = "110 - \"Response is Stale\"";
+	private static final String WARNING_REVALIDATION_FAILED = "111 - \"Revalidation Failed\"";
+	private static final String RANGE = "range";
+	private static final CharSequence[] VALIDATORS = { HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH,
+			HttpHeaders.IF_MODIFIED_SINCE, "if-unmodified-since" };
+	private static final CharSequence[] NOT_MODIFIED_HEADERS = { HttpHeaders.CACHE_CONTROL, "content-location",
+			HttpHeaders.DATE, HttpHeaders.ETAG, HttpHeaders.EXPIRES, "vary" };
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final Vertx vertx;
 	private final HttpClient client;
 	private Function<HttpServerRequest, Future<SocketAddress>> targetSelector = req -> Future
 			.failedFuture("No target available");
-	private final Map<String, Resource> cache = new HashMap<>();
+	private final ResponseCacheImpl cache;
+	// Per instance, so per event loop: concurrent misses on different event
+	// loops each send one backend request, the cache has one entry after
+	private final Map<String, Flight> inflight = new HashMap<>();
 
 	private Function<HttpRequestResponse, ProxyFilter> localFilterSelector = null;
 
-	public SfdcHttpProxyImpl(HttpClient client) {
+	public SfdcHttpProxyImpl(Vertx vertx, HttpClient client, ResponseCacheImpl cache) {
+		this.vertx = vertx;
 		this.client = client;
+		this.cache = cache;
 	}
 
 	@Override
 	public SfdcHttpProxy filterSelector(Function<HttpRequestResponse, ProxyFilter> filterSelector) {
+		if (this.localFilterSelector != null) {
+			// Cached output of the old filters doesn't apply anymore
+			this.cache.removeFiltered();
+		}
 		this.localFilterSelector = filterSelector;
 		return this;
 	}
@@ -508,8 +107,81 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 
 	@Override
 	public void handle(HttpServerRequest request) {
-		if (!serveFromCache(request)) {
-			doReq(request, null);
+		String cacheKey = this.lookupKey(request);
+		Resource resource = this.cache.get(cacheKey);
+		if ((resource == null)
+				&& ((request.method() == HttpMethod.GET) || (request.method() == HttpMethod.HEAD))) {
+			// What only this session may see
+			String privateKey = this.cache.privateKey(request.headers(), cacheKey);
+			resource = (privateKey == null) ? null : this.cache.get(privateKey);
+		}
+		if (resource == null) {
+			DiskTier.Entry entry = this.cache.getFromDisk(cacheKey);
+			if (entry != null) {
+				this.serveFromDisk(new CachedHttpServerRequest(request), cacheKey, entry);
+				return;
+			}
+		}
+		this.lookedUp(request, cacheKey, resource);
+	}
+
+	/**
+	 * @return true when the request carries validators, its answer may be a
+	 *         304 or 412 meant only for it
+	 */
+	private static boolean isConditional(HttpServerRequest request) {
+		for (CharSequence validator : VALIDATORS) {
+			if (request.headers().contains(validator)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the key the cache knows the request by: normalized URL plus the
+	 *         values of the headers the resource varies on
+	 */
+	private String lookupKey(HttpServerRequest request) {
+		return this.cache.keys().key(request.absoluteURI(), request.headers());
+	}
+
+	/**
+	 * Continues with what the cache had for the request: serve it or go to
+	 * the backend. Like all methods taking a resource for a request, it takes
+	 * over the request's reference on it and hands it on or drops it
+	 */
+	private void lookedUp(HttpServerRequest request, String cacheKey, Resource resource) {
+		if ((resource != null) && serveFromCache(request, resource)) {
+			return;
+		}
+		// An expired entry is still good enough when the backend fails
+		Resource stale = ((resource != null) && resource.servableOnError(System.currentTimeMillis())) ? resource
+				: null;
+		if ((resource != null) && (stale == null)) {
+			resource.release();
+		}
+		// Partial and conditional responses can't be shared, such requests
+		// neither lead nor join a flight
+		if ((request.method() == HttpMethod.GET) && (this.cache.coalesceTimeout() > 0)
+				&& (request.getHeader(RANGE) == null) && !SfdcHttpProxyImpl.isConditional(request)
+				&& !this.cache.isPass(cacheKey)) {
+			Flight flight = this.inflight.get(cacheKey);
+			if (flight != null) {
+				this.cache.count(ResponseCacheImpl.Event.COALESCED);
+				SfdcHttpProxyImpl.drop(stale);
+				this.join(flight, request);
+				return;
+			}
+			this.cache.count(ResponseCacheImpl.Event.MISS);
+			flight = new Flight(cacheKey);
+			this.inflight.put(cacheKey, flight);
+			doReq(request, null, flight, stale);
+		} else {
+			if ((request.method() == HttpMethod.GET) || (request.method() == HttpMethod.HEAD)) {
+				this.cache.count(ResponseCacheImpl.Event.MISS);
+			}
+			doReq(request, null, null, stale);
 		}
 	}
 
@@ -535,7 +207,7 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 		return this;
 	}
 
-	private void doReq(HttpServerRequest request, Resource resource) {
+	private void doReq(HttpServerRequest request, Resource resource, Flight flight, Resource stale) {
 		request.pause();
 		Future<SocketAddress> fut = targetSelector.apply(request);
 		fut.setHandler(ar -> {
@@ -543,6 +215,14 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 				SocketAddress target = ar.result();
 				ProxyRequestImpl proxyReq = new ProxyRequestImpl(this, client, target, request);
 
+				if ((request.method() == HttpMethod.GET) && (request.getHeader(RANGE) == null)
+						&& !this.cache.isPass(this.lookupKey(request))) {
+					// The response may get stored for everybody, it must be the
+					// full one and not an answer to this client's validators
+					for (CharSequence validator : VALIDATORS) {
+						proxyReq.headers().remove(validator);
+					}
+				}
 				if ((resource != null) && (resource.etag != null)) {
 					proxyReq.headers().set(HttpHeaders.IF_NONE_MATCH, resource.etag);
 				}
@@ -550,10 +230,21 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 				proxyReq.send(ar1 -> {
 					if (ar1.succeeded()) {
 						ProxyResponse proxyResp = ar1.result();
+						if ((stale != null) && (proxyResp.statusCode() >= 500)
+								&& stale.servableOnError(System.currentTimeMillis())) {
+							proxyResp.cancel();
+							this.release(flight);
+							SfdcHttpProxyImpl.drop(resource);
+							this.cache.count(ResponseCacheImpl.Event.STALE_ON_ERROR);
+							this.serve(new CachedHttpServerRequest(request), stale, WARNING_REVALIDATION_FAILED);
+							return;
+						}
+						SfdcHttpProxyImpl.drop(stale);
 						if ((resource != null)
 								&& ((proxyResp.statusCode() == 200) || (proxyResp.statusCode() == 304))) {
 							if (resource.revalidate(proxyResp)) {
 								CachedHttpClientResponse cachedResp = resource.response();
+								request.response().closeHandler(v -> cachedResp.close());
 								proxyResp.set(cachedResp);
 								proxyResp.send(ar2 -> {
 									// Done
@@ -561,43 +252,280 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 								cachedResp.send();
 							} else {
 								// Force a new request
+								resource.release();
 								proxyResp.cancel();
 								CachedHttpServerRequest req = new CachedHttpServerRequest(request);
-								doReq(req, null); // Should we use something else than null ?
+								doReq(req, null, null, null); // Should we use something else than null ?
 							}
 							return;
 						}
-
-						if ((request.method() == HttpMethod.GET) && proxyResp.publicCacheControl()
-								&& (proxyResp.maxAge() > 0)) {
-							Resource res = new Resource(request.absoluteURI(), proxyResp.statusCode(),
-									proxyResp.statusMessage(), proxyResp.headers(), System.currentTimeMillis(),
-									proxyResp.maxAge());
-							// TODO do we need a body filter here?
-							// proxyResp.bodyFilter(res);
-							this.cache.put(request.absoluteURI(), res);
+						SfdcHttpProxyImpl.drop(resource);
+
+						// Null for Vary: *, that can't be cached
+						String key = this.cache.keys().key(request.absoluteURI(), request.headers(),
+								proxyResp.headers());
+						// Only full bodies are stored, a 304 or 206 answers one request
+						// and not the resource. Errors go by their negative TTL
+						boolean cacheable = (proxyResp.statusCode() == 200) && proxyResp.publicCacheControl()
+								&& (proxyResp.maxAge() > 0);
+						long negativeTtl = cacheable ? 0 : this.negativeTtl(proxyResp);
+						String privateKey = ((key == null) || cacheable || (proxyResp.statusCode() != 200)) ? null
+								: this.cache.privateKey(request.headers(), key);
+						long privateTtl = (privateKey == null) ? 0 : this.privateTtl(request.uri(), proxyResp);
+						if ((request.method() == HttpMethod.GET)
+								&& (cacheable || (negativeTtl > 0) || (privateTtl > 0)) && SfdcHttpProxyImpl.fits(proxyResp, this.cache.maxBodyBytes(proxyResp.statusCode()))
+								&& (key != null)) {
+							// Headers are copied, the front response keeps changing them
+							Resource res = this.newResource(request.absoluteURI(), request.uri(),
+									proxyResp.statusCode(), proxyResp.statusMessage(),
+									MultiMap.caseInsensitiveMultiMap().addAll(proxyResp.headers()),
+									cacheable ? proxyResp.maxAge() : Math.max(negativeTtl, privateTtl))
+									.keyed((privateTtl > 0) ? privateKey : key);
+							if (!cacheable) {
+								// Negative and private entries are never served past their TTL
+								res.staleFor(0, 0);
+							}
+							// Collects the body while it streams, published on end
+							proxyResp.bodyFilter(res);
+							if (privateTtl > 0) {
+								// Waiting requests of other sessions can't have it
+								this.cache.markPass(this.lookupKey(request));
+								this.release(flight);
+							} else if (!SfdcHttpProxyImpl.fits(proxyResp,
+									this.cache.maxEntryBytes(proxyResp.statusCode()))) {
+								// Goes past memory to the disk tier, waiting requests couldn't replay it
+								this.release(flight);
+							} else {
+								this.resolve(flight, res);
+							}
+						} else {
+							if (request.getHeader(RANGE) == null) {
+								this.cache.markPass(this.lookupKey(request));
+							}
+							this.release(flight);
 						}
 						proxyResp.send(ar2 -> {
 							// Done
 						});
+					} else {
+						this.release(flight);
+						SfdcHttpProxyImpl.drop(resource);
+						SfdcHttpProxyImpl.drop(stale);
 					}
 				});
 			} else {
+				this.release(flight);
+				SfdcHttpProxyImpl.drop(resource);
+				if ((stale != null) && stale.servableOnError(System.currentTimeMillis())) {
+					this.cache.count(ResponseCacheImpl.Event.STALE_ON_ERROR);
+					this.serve(request, stale, WARNING_REVALIDATION_FAILED);
+					return;
+				}
+				SfdcHttpProxyImpl.drop(stale);
 				request.resume();
 				request.response().setStatusCode(404).end();
 			}
 		});
 	}
 
-	private boolean serveFromCache(HttpServerRequest request) {
-		String cacheKey = request.absoluteURI();
-		Resource resource = cache.get(cacheKey);
-		if (resource == null) {
+	/**
+	 * Error responses the target didn't forbid to store are kept for the
+	 * configured negative TTL of their status
+	 *
+	 * @return milliseconds, 0 for not at all
+	 */
+	private long negativeTtl(ProxyResponse proxyResp) {
+		String cacheControlHeader = proxyResp.headers().get(HttpHeaders.CACHE_CONTROL);
+		if (cacheControlHeader != null) {
+			CacheControl cacheControl = new CacheControl().parse(cacheControlHeader);
+			if (cacheControl.isNoStore() || cacheControl.isPrivate()) {
+				return 0;
+			}
+		}
+		return this.cache.negativeTtl(proxyResp.statusCode());
+	}
+
+	/**
+	 * A route's privateTtl wins over what the target says about freshness, only
+	 * no-store keeps a response out. Without a route value the target's max-age
+	 * or Expires count, responses without those get the partition's ttl.
+	 * Responses setting cookies are never kept, they change the session
+	 *
+	 * @return milliseconds the response is kept for its session, 0 for not at
+	 *         all
+	 */
+	private long privateTtl(String uri, ProxyResponse proxyResp) {
+		if (proxyResp.headers().contains(HttpHeaders.SET_COOKIE)) {
+			return 0;
+		}
+		String cacheControlHeader = proxyResp.headers().get(HttpHeaders.CACHE_CONTROL);
+		CacheControl cacheControl = new CacheControl().parse((cacheControlHeader == null) ? "" : cacheControlHeader);
+		if (cacheControl.isNoStore()) {
+			return 0;
+		}
+		long routeTtl = this.cache.policy(uri).privateTtl();
+		if (routeTtl >= 0) {
+			return routeTtl;
+		}
+		if (cacheControl.isNoCache() || (cacheControl.maxAge() == 0)) {
+			return 0;
+		}
+		long lifetime = CacheControl.lifetime(cacheControl, proxyResp.headers().get(HttpHeaders.DATE),
+				proxyResp.headers().get(HttpHeaders.EXPIRES));
+		return (lifetime > 0) ? lifetime : this.cache.privateTtl();
+	}
+
+	/**
+	 * @param limit
+	 *            largest body allowed
+	 * @return true unless the response announces a larger body
+	 */
+	private static boolean fits(ProxyResponse proxyResp, long limit) {
+		String contentLength = proxyResp.headers().get(HttpHeaders.CONTENT_LENGTH);
+		try {
+			return (contentLength == null) || (Long.parseLong(contentLength) <= limit);
+		} catch (NumberFormatException e) {
 			return false;
 		}
+	}
+
+	private Resource newResource(String absoluteUri, String uri, int statusCode, String statusMessage,
+			MultiMap headers, long maxAge) {
+		Resource resource = new Resource(this.cache, absoluteUri, uri, statusCode, statusMessage, headers,
+				System.currentTimeMillis(), maxAge);
+		return this.applyStalePolicy(resource);
+	}
+
+	/**
+	 * Stale windows come from the backend Cache-Control header, falling back to
+	 * the route defaults from proxy.json
+	 */
+	private Resource applyStalePolicy(Resource resource) {
+		CachePolicy policy = this.cache.policy(resource.uri);
+		long staleWhileRevalidate = policy.staleWhileRevalidate();
+		long staleIfError = policy.staleIfError();
+		String cacheControlHeader = resource.headers.get(HttpHeaders.CACHE_CONTROL);
+		if (cacheControlHeader != null) {
+			CacheControl cacheControl = new CacheControl().parse(cacheControlHeader);
+			if (cacheControl.staleWhileRevalidate() >= 0) {
+				staleWhileRevalidate = cacheControl.staleWhileRevalidate() * 1000L;
+			}
+			if (cacheControl.staleIfError() >= 0) {
+				staleIfError = cacheControl.staleIfError() * 1000L;
+			}
+		}
+		return resource.staleFor(staleWhileRevalidate, staleIfError);
+	}
+
+	/**
+	 * Revalidates a stale resource in the background, using the request that
+	 * found it stale to pick the target and for the headers. Only one
+	 * revalidation runs per resource, it holds its own reference on it
+	 */
+	private void refresh(HttpServerRequest trigger, Resource resource) {
+		if (!resource.revalidating.compareAndSet(false, true)) {
+			return;
+		}
+		// The caller holds one, this can't fail
+		resource.retain();
+		AtomicBoolean finished = new AtomicBoolean();
+		Handler<Void> done = v -> {
+			if (finished.compareAndSet(false, true)) {
+				resource.revalidating.set(false);
+				resource.release();
+			}
+		};
+		this.cache.count(ResponseCacheImpl.Event.REVALIDATION);
+		targetSelector.apply(trigger).setHandler(ar -> {
+			if (ar.failed()) {
+				done.handle(null);
+				return;
+			}
+			SocketAddress target = ar.result();
+			HttpClientRequest backRequest = client.get(target.port(), target.host(), resource.uri);
+			trigger.headers().forEach(header -> {
+				String name = header.getKey();
+				if (!name.equalsIgnoreCase("host") && !name.toLowerCase().startsWith("if-")
+						&& !name.equalsIgnoreCase("range")) {
+					backRequest.headers().add(name, header.getValue());
+				}
+			});
+			if (resource.etag != null) {
+				backRequest.headers().set(HttpHeaders.IF_NONE_MATCH, resource.etag);
+			} else if (resource.lastModified != null) {
+				backRequest.headers().set(HttpHeaders.IF_MODIFIED_SINCE,
+						ParseUtils.formatHttpDate(resource.lastModified));
+			}
+			backRequest.handler(backResponse -> this.refreshed(resource, backResponse, done));
+			// A hanging target must not keep the entry from being revalidated
+			backRequest.setTimeout(this.cache.revalidateTimeout());
+			backRequest.exceptionHandler(err -> {
+				done.handle(null);
+				this.logger.error(err.getMessage(), err);
+			});
+			backRequest.end();
+		});
+	}
+
+	/**
+	 * @param done
+	 *            ends the revalidation, once the stored body isn't needed
+	 *            anymore
+	 */
+	private void refreshed(Resource resource, HttpClientResponse backResponse, Handler<Void> done) {
+		String cacheControlHeader = backResponse.getHeader(HttpHeaders.CACHE_CONTROL);
+		CacheControl cacheControl = new CacheControl().parse((cacheControlHeader == null) ? "" : cacheControlHeader);
+		long maxAge = CacheControl.lifetime(cacheControl, backResponse.getHeader(HttpHeaders.DATE),
+				backResponse.getHeader(HttpHeaders.EXPIRES));
+		if (backResponse.statusCode() == 304) {
+			Resource res = resource.refreshed(backResponse.headers(), System.currentTimeMillis(),
+					(maxAge > 0) ? maxAge : resource.maxAge);
+			this.cache.put(resource.key, this.applyStalePolicy(res));
+			done.handle(null);
+			backResponse.resume();
+		} else if ((backResponse.statusCode() == 200) && cacheControl.isPublic() && (maxAge > 0)) {
+			MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+			backResponse.headers().forEach(header -> {
+				if (!header.getKey().equalsIgnoreCase("transfer-encoding")) {
+					headers.add(header.getKey(), header.getValue());
+				}
+			});
+			Resource res = this.newResource(resource.absoluteUri, resource.uri, backResponse.statusCode(),
+					backResponse.statusMessage(), headers, maxAge).keyed(resource.key);
+			// The tee publishes the new body once it is complete
+			res.apply(backResponse)
+					.exceptionHandler(err -> done.handle(null))
+					.handler(buff -> {
+						// Collected by the tee
+					})
+					.endHandler(done);
+		} else if ((backResponse.statusCode() >= 500) && resource.servableOnError(System.currentTimeMillis())) {
+			// The target fails, the entry keeps being served within its
+			// stale-if-error window and the next hit tries again
+			done.handle(null);
+			backResponse.resume();
+		} else {
+			// Not cacheable anymore
+			this.cache.remove(resource.key);
+			done.handle(null);
+			backResponse.resume();
+		}
+	}
+
+	private boolean serveFromCache(HttpServerRequest request, Resource resource) {
+		String cacheKey = resource.key;
 		long now = System.currentTimeMillis();
-		if ((resource.timestamp + resource.maxAge) < now) {
-			cache.remove(cacheKey);
+		if (!resource.isFresh(now)) {
+			if (((request.method() == HttpMethod.GET) || (request.method() == HttpMethod.HEAD))
+					&& resource.servableWhileRevalidating(now)) {
+				this.cache.count(ResponseCacheImpl.Event.STALE);
+				this.refresh(request, resource);
+				this.serve(request, resource, WARNING_STALE);
+				return true;
+			}
+			if (!resource.servableOnError(now)) {
+				this.cache.remove(cacheKey);
+			}
 			return false;
 		}
 		String cacheControlHeader = request.getHeader(HttpHeaders.CACHE_CONTROL);
@@ -608,7 +536,8 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 				if (currentAge > (cacheControl.maxAge() * 1000)) {
 					String etag = resource.headers.get(HttpHeaders.ETAG);
 					if (etag != null) {
-						doReq(request, resource);
+						this.cache.count(ResponseCacheImpl.Event.REVALIDATION);
+						doReq(request, resource, null, null);
 						return true;
 					} else {
 						return false;
@@ -617,23 +546,546 @@ public class SfdcHttpProxyImpl implements SfdcHttpProxy {
 			}
 		}
 
-		String ifModifiedSinceHeader = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
-		if (((request.method() == HttpMethod.GET) || (request.method() == HttpMethod.HEAD))
-				&& (ifModifiedSinceHeader != null) && (resource.lastModified != null)) {
-			Date ifModifiedSince = ParseUtils.parseHeaderDate(ifModifiedSinceHeader);
-			if (resource.lastModified.getTime() <= ifModifiedSince.getTime()) {
-				request.response().setStatusCode(304).end();
-				return true;
+		this.cache.count(ResponseCacheImpl.Event.HIT);
+		this.serve(request, resource, null);
+		return true;
+	}
+
+	/**
+	 * Serves a record from the disk tier. Fresh records that need no filtering
+	 * go out with sendFile, everything else is read back and handled like a
+	 * memory hit. Bodies that fit move back to memory
+	 *
+	 * @param request
+	 *            the request, wrapped since it ends while the disk is read
+	 */
+	private void serveFromDisk(HttpServerRequest request, String cacheKey, DiskTier.Entry entry) {
+		boolean plain = ((request.method() == HttpMethod.GET) || (request.method() == HttpMethod.HEAD))
+				&& entry.isFresh(System.currentTimeMillis()) && (request.getHeader(HttpHeaders.CACHE_CONTROL) == null);
+		this.cache.load(entry, !plain, ar -> {
+			if (ar.failed()) {
+				// Segment is gone
+				this.cache.remove(cacheKey);
+				this.lookedUp(request, cacheKey, null);
+				return;
 			}
+			Resource resource = ar.result().keyed(cacheKey);
+			if (plain) {
+				if (this.answerConditional(request, resource, null)) {
+					this.cache.count(ResponseCacheImpl.Event.HIT);
+					// Validators are in the record header, the body stays on disk
+					return;
+				}
+				// Compressed records only go out as stored to clients taking gzip
+				List<ByteRanges.Range> ranges = resource.isEncoded() ? null
+						: this.requestedRanges(request, resource, entry.length);
+				if (this.isPassThrough(resource) && ((ranges == null) || (ranges.size() <= 1))
+						&& (!resource.isEncoded()
+								|| BodyCompression.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING)))) {
+					this.cache.count(ResponseCacheImpl.Event.HIT);
+					this.sendFile(request, resource, entry, ranges);
+				} else {
+					this.cache.load(entry, true, ar2 -> this.loaded(request, cacheKey, ar2));
+				}
+				return;
+			}
+			this.loaded(request, cacheKey, ar);
+		});
+	}
+
+	private void loaded(HttpServerRequest request, String cacheKey, AsyncResult<Resource> ar) {
+		if (ar.failed()) {
+			this.cache.remove(cacheKey);
+			this.lookedUp(request, cacheKey, null);
+			return;
+		}
+		Resource resource = ar.result().keyed(cacheKey);
+		if (resource.weight() <= this.cache.maxEntryBytes()) {
+			// The cache takes the first reference, the request keeps its own
+			resource.retain();
+			this.cache.promote(cacheKey, resource);
 		}
+		this.lookedUp(request, cacheKey, resource);
+	}
 
-		ProxyRequestImpl proxyReq = new ProxyRequestImpl(this, req -> resource.request(), request);
-		proxyReq.send(ar1 -> {
-			ProxyResponse proxyResp = ar1.result();
-			proxyResp.send(ar2 -> {
-				// Done
-			});
+	private boolean isPassThrough(Resource resource) {
+		return (this.localFilterSelector == null) || this.getResponseFilter(
+				new HttpRequestResponse(resource.response(), resource.request())).isPassThrough();
+	}
+
+	/**
+	 * Sends the body straight from the segment file, the kernel copies it to
+	 * the socket
+	 *
+	 * @param ranges
+	 *            null for the whole body, otherwise none (416) or one range of
+	 *            the body
+	 */
+	private void sendFile(HttpServerRequest request, Resource resource, DiskTier.Entry entry,
+			List<ByteRanges.Range> ranges) {
+		if ((ranges != null) && ranges.isEmpty()) {
+			this.rangeNotSatisfiable(request, entry.length);
+			return;
+		}
+		HttpServerResponse response = request.response();
+		this.copyHeaders(response, resource, null, true);
+		if (resource.isEncoded()) {
+			this.encodedHeaders(response);
+		}
+		long offset = entry.bodyOffset();
+		long length = entry.length;
+		if (ranges == null) {
+			response.setStatusCode(resource.statusCode);
+			response.setStatusMessage(resource.statusMessage);
+		} else {
+			ByteRanges.Range range = ranges.get(0);
+			response.setStatusCode(206);
+			response.putHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(entry.length));
+			offset += range.first;
+			length = range.length();
+		}
+		if (request.method() == HttpMethod.HEAD) {
+			response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+			response.end();
+			return;
+		}
+		response.sendFile(entry.file(), offset, length, ar -> {
+			if (ar.failed() && !response.headWritten()) {
+				// Segment got deleted in between
+				response.headers().clear();
+				this.cache.remove(resource.key);
+				this.lookedUp(request, resource.key, null);
+			}
 		});
+	}
+
+	/**
+	 * Sends a cached resource through the filters to the client
+	 *
+	 * @param warning
+	 *            value for a Warning header, null for none
+	 */
+	private void serve(HttpServerRequest request, Resource resource, String warning) {
+		if (this.answerConditional(request, resource, warning)) {
+			resource.release();
+			return;
+		}
+		ProxyFilter filter = (this.localFilterSelector == null) ? ProxyFilter.passThrough()
+				: this.getResponseFilter(new HttpRequestResponse(resource.response(), resource.request()));
+		String fingerprint = filter.fingerprint();
+		if (filter.isPassThrough() || (fingerprint == null) || !resource.isComplete()) {
+			this.send(request, resource, warning, filter);
+			return;
+		}
+		// Filters ran on this version before, skip them
+		String filteredKey = ResponseCacheImpl.filteredKey(resource.key, fingerprint);
+		Resource filtered = this.cache.get(filteredKey);
+		if ((filtered != null) && filtered.derivedFrom(resource)) {
+			resource.release();
+			this.send(request, filtered, warning, ProxyFilter.passThrough());
+			return;
+		}
+		SfdcHttpProxyImpl.drop(filtered);
+		HttpServerRequest deferred = new CachedHttpServerRequest(request);
+		this.filterOutput(resource, filter, ar -> {
+			if (ar.failed() && FilterWorker.isRejected(ar.cause())) {
+				// Running the filter again wouldn't find room either
+				resource.release();
+				deferred.response().setStatusCode(503)
+						.putHeader(HttpHeaders.RETRY_AFTER, FilterWorker.RETRY_AFTER).end();
+				return;
+			}
+			if (ar.failed()) {
+				this.logger.error(ar.cause().getMessage(), ar.cause());
+				this.send(deferred, resource, warning, null);
+				return;
+			}
+			resource.release();
+			Resource output = ar.result();
+			if (output.weight() <= this.cache.maxEntryBytes(output)) {
+				// One reference for the cache, one for this request
+				output.retain();
+				this.cache.put(filteredKey, output);
+			}
+			this.send(deferred, output, warning, ProxyFilter.passThrough());
+		});
+	}
+
+	/**
+	 * Answers a conditional GET or HEAD from the cached validators: 304 when the
+	 * client's copy is current, 412 when If-Match or If-Unmodified-Since fail.
+	 * Neither carries a body
+	 *
+	 * @return true when the request got answered
+	 */
+	private boolean answerConditional(HttpServerRequest request, Resource resource, String warning) {
+		if (((request.method() != HttpMethod.GET) && (request.method() != HttpMethod.HEAD))
+				|| (resource.statusCode != 200)) {
+			return false;
+		}
+		int status = Preconditions.evaluate(request.headers(), resource.etag, resource.lastModified);
+		if (status == Preconditions.PROCEED) {
+			return false;
+		}
+		HttpServerResponse response = request.response();
+		response.setStatusCode(status);
+		if (status == 304) {
+			// RFC 7232 4.1: the headers a 200 would have carried to update caches
+			for (CharSequence name : NOT_MODIFIED_HEADERS) {
+				List<String> values = resource.headers.getAll(name);
+				if (!values.isEmpty()) {
+					response.headers().set(name.toString(), values);
+				}
+			}
+			if (resource.etag == null) {
+				String lastModified = resource.headers.get(HttpHeaders.LAST_MODIFIED);
+				if (lastModified != null) {
+					response.putHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+				}
+			}
+			if (warning != null) {
+				response.putHeader("warning", warning);
+			}
+		}
+		response.end();
 		return true;
 	}
+
+	/**
+	 * Runs the content filter over a complete resource. The caller keeps its
+	 * reference, the filter reads the body with one of its own
+	 *
+	 * @param handler
+	 *            gets a copy of the resource with the filtered body
+	 */
+	private void filterOutput(Resource resource, ProxyFilter filter, Handler<AsyncResult<Resource>> handler) {
+		CachedBody output = CachedBody.create(this.cache.offHeap());
+		resource.retain();
+		CachedHttpClientResponse source = resource.response();
+		filter.apply(source).setHandler(ar -> {
+			if (ar.failed()) {
+				source.close();
+				output.release();
+				handler.handle(Future.failedFuture(ar.cause()));
+				return;
+			}
+			ReadStream<Buffer> stream = ar.result();
+			stream.exceptionHandler(err -> {
+				output.release();
+				handler.handle(Future.failedFuture(err));
+			});
+			stream.handler(output::append);
+			stream.endHandler(v -> {
+				// Chunked bodies get written by end, same as in ProxyResponse.send
+				boolean chunked = resource.headers.getAll("transfer-encoding").contains("chunked");
+				Future<Void> ended = chunked ? filter.end(new BodyWriteStream(output)) : Future.succeededFuture();
+				ended.setHandler(done -> {
+					if (done.succeeded()) {
+						handler.handle(Future.succeededFuture(resource.filtered(output)));
+					} else {
+						output.release();
+						handler.handle(Future.failedFuture(done.cause()));
+					}
+				});
+			});
+			source.send();
+		});
+	}
+
+	/**
+	 * Sends a resource through the given content filter to the client
+	 *
+	 * @param filter
+	 *            the filter, null to let the filter selector pick
+	 */
+	private void send(HttpServerRequest request, Resource resource, String warning, ProxyFilter filter) {
+		if ((filter != null) && filter.isPassThrough() && resource.isComplete()) {
+			// The body goes out as stored: written straight to the response,
+			// compressed or in ranges
+			if (resource.isEncoded()) {
+				if (BodyCompression.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+					this.sendStored(request, resource, warning);
+					return;
+				}
+			} else {
+				List<ByteRanges.Range> ranges = this.requestedRanges(request, resource, resource.length());
+				if (ranges != null) {
+					this.sendRanges(request, resource, warning, ranges);
+				} else {
+					this.sendStored(request, resource, warning);
+				}
+				return;
+			}
+		}
+		// Filters and decompression run on the body as a stream
+		CachedHttpClientResponse body = resource.response();
+		request.response().closeHandler(v -> body.close());
+		ProxyRequestImpl proxyReq = new ProxyRequestImpl(this, req -> resource.request(body), request);
+		proxyReq.send(ar1 -> {
+			if (ar1.succeeded()) {
+				ProxyResponse proxyResp = ar1.result();
+				proxyResp.contentFilter(filter);
+				if (resource.isEncoded()) {
+					// Decompressed for this client, others get gzip
+					this.varyOnEncoding(proxyResp.headers());
+				}
+				if (warning != null) {
+					proxyResp.headers().add("warning", warning);
+				}
+				proxyResp.send(ar2 -> {
+					// Done
+				});
+			}
+		});
+	}
+
+	/**
+	 * @param length
+	 *            length of the body that would be sent
+	 * @return the ranges a GET asks for, null when the whole body is to be sent:
+	 *         no or an unusable Range header, or If-Range doesn't match
+	 */
+	private List<ByteRanges.Range> requestedRanges(HttpServerRequest request, Resource resource, long length) {
+		String range = request.getHeader(RANGE);
+		if ((range == null) || (request.method() != HttpMethod.GET) || (resource.statusCode != 200)) {
+			return null;
+		}
+		String ifRange = request.getHeader("if-range");
+		if ((ifRange != null) && !ByteRanges.ifRange(ifRange, resource.etag, resource.lastModified)) {
+			return null;
+		}
+		return ByteRanges.parse(range, length);
+	}
+
+	/**
+	 * Sends ranges of a complete body: one as a 206 with Content-Range,
+	 * several as multipart/byteranges, none as 416. The parts are read from
+	 * the stored body one after the other
+	 */
+	private void sendRanges(HttpServerRequest request, Resource resource, String warning,
+			List<ByteRanges.Range> ranges) {
+		long total = resource.length();
+		if (ranges.isEmpty()) {
+			resource.release();
+			this.rangeNotSatisfiable(request, total);
+			return;
+		}
+		HttpServerResponse response = request.response();
+		response.setStatusCode(206);
+		if (ranges.size() == 1) {
+			ByteRanges.Range range = ranges.get(0);
+			this.copyHeaders(response, resource, warning, true);
+			response.putHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(total));
+			response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(range.length()));
+			this.pipe(resource.read(range.first, range.last), response, v -> response.end());
+			return;
+		}
+		String contentType = resource.headers.get(HttpHeaders.CONTENT_TYPE);
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		List<Buffer> heads = ByteRanges.partHeads(ranges, total, contentType, boundary);
+		Buffer tail = ByteRanges.closeDelimiter(boundary);
+		long length = tail.length();
+		for (int i = 0; i < ranges.size(); i++) {
+			length += heads.get(i).length() + ranges.get(i).length();
+		}
+		this.copyHeaders(response, resource, warning, false);
+		response.putHeader(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+		this.sendParts(response, resource, ranges.iterator(), heads.iterator(), tail);
+	}
+
+	/**
+	 * Writes the next part of a multipart/byteranges body. Each part reads
+	 * with its own reference, the next one takes it before the part before
+	 * lets go
+	 */
+	private void sendParts(HttpServerResponse response, Resource resource, Iterator<ByteRanges.Range> ranges,
+			Iterator<Buffer> heads, Buffer tail) {
+		ByteRanges.Range range = ranges.next();
+		response.write(heads.next());
+		this.pipe(resource.read(range.first, range.last), response, v -> {
+			if (ranges.hasNext()) {
+				resource.retain();
+				this.sendParts(response, resource, ranges, heads, tail);
+			} else {
+				response.end(tail);
+			}
+		});
+	}
+
+	/**
+	 * Streams a body to the response as fast as the client takes it
+	 *
+	 * @param body
+	 *            the body, takes over the request's reference on the resource
+	 * @param endHandler
+	 *            called once the body is written
+	 */
+	private void pipe(CachedHttpClientResponse body, HttpServerResponse response, Handler<Void> endHandler) {
+		response.closeHandler(v -> body.close());
+		body.exceptionHandler(err -> {
+			this.logger.error(err.getMessage(), err);
+			response.close();
+		});
+		body.endHandler(endHandler);
+		Pump.pump(body, response).start();
+		body.send();
+	}
+
+	/**
+	 * Cache hit fast path: status, headers and the complete body as stored go
+	 * out without a proxy request/response pair or a context hop, as fast as
+	 * the client takes them. A gzip body is only sent to clients that accept
+	 * it
+	 */
+	private void sendStored(HttpServerRequest request, Resource resource, String warning) {
+		HttpServerResponse response = request.response();
+		response.setStatusCode(resource.statusCode);
+		response.setStatusMessage(resource.statusMessage);
+		this.copyHeaders(response, resource, warning, true);
+		if (resource.isEncoded()) {
+			this.encodedHeaders(response);
+		}
+		int length = resource.length();
+		response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+		if ((request.method() == HttpMethod.HEAD) || (length == 0)) {
+			resource.release();
+			response.end();
+		} else {
+			this.pipe(resource.read(0, length - 1), response, v -> response.end());
+		}
+	}
+
+	/**
+	 * Marks a response as the gzip form of the stored representation. The
+	 * entity tag gets weak, the bytes differ from the plain form
+	 */
+	private void encodedHeaders(HttpServerResponse response) {
+		response.putHeader(HttpHeaders.CONTENT_ENCODING, BodyCompression.GZIP);
+		String etag = response.headers().get(HttpHeaders.ETAG);
+		if ((etag != null) && !etag.startsWith("W/")) {
+			response.putHeader(HttpHeaders.ETAG, "W/" + etag);
+		}
+		this.varyOnEncoding(response.headers());
+	}
+
+	private void varyOnEncoding(MultiMap headers) {
+		for (String vary : headers.getAll("vary")) {
+			if (vary.toLowerCase().contains("accept-encoding") || vary.trim().equals("*")) {
+				return;
+			}
+		}
+		headers.add("vary", HttpHeaders.ACCEPT_ENCODING);
+	}
+
+	private void rangeNotSatisfiable(HttpServerRequest request, long total) {
+		request.response().setStatusCode(416)
+				.putHeader(HttpHeaders.CONTENT_RANGE, ByteRanges.unsatisfied(total))
+				.end();
+	}
+
+	/**
+	 * Copies the stored headers that describe the representation, not the
+	 * length of the transfer
+	 *
+	 * @param warning
+	 *            value for a Warning header, null for none
+	 * @param withContentType
+	 *            false when the response gets its own Content-Type
+	 */
+	private void copyHeaders(HttpServerResponse response, Resource resource, String warning,
+			boolean withContentType) {
+		resource.headers.forEach(header -> {
+			String name = header.getKey();
+			if (!name.equalsIgnoreCase("content-length") && !name.equalsIgnoreCase("transfer-encoding")
+					&& (withContentType || !name.equalsIgnoreCase("content-type"))) {
+				response.headers().add(name, header.getValue());
+			}
+		});
+		if (!response.headers().contains(HttpHeaders.DATE)) {
+			response.putHeader(HttpHeaders.DATE, ParseUtils.formatHttpDate(new Date()));
+		}
+		if (warning != null) {
+			response.headers().add("warning", warning);
+		}
+	}
+
+	/**
+	 * Parks a request until the backend request in flight for the same key
+	 * delivered its headers, at most for the coalesce timeout
+	 */
+	private void join(Flight flight, HttpServerRequest request) {
+		if (flight.resource != null) {
+			// Headers are in, stream the body as it arrives
+			this.serveOrFetch(request, flight.resource);
+			return;
+		}
+		// The request will have ended by the time it gets served
+		HttpServerRequest parked = new CachedHttpServerRequest(request);
+		long timerId = this.vertx.setTimer(this.cache.coalesceTimeout(), id -> {
+			if (flight.waiting.remove(parked) != null) {
+				// Waited long enough, go on our own
+				doReq(parked, null, null, null);
+			}
+		});
+		flight.waiting.put(parked, timerId);
+	}
+
+	/**
+	 * The response in flight is cacheable: everybody waiting gets it streamed
+	 */
+	private void resolve(Flight flight, Resource resource) {
+		if (flight == null) {
+			return;
+		}
+		flight.resource = resource;
+		resource.doneHandler(v -> this.inflight.remove(flight.key, flight));
+		flight.waiting.forEach((request, timerId) -> {
+			this.vertx.cancelTimer(timerId);
+			this.serveOrFetch(request, resource);
+		});
+		flight.waiting.clear();
+	}
+
+	/**
+	 * Serves a request that waited for a backend request in flight. A response
+	 * that varies on headers the request has different values for isn't
+	 * shared, the request goes to the backend on its own. So does it when the
+	 * response got evicted and freed or its body was too big to keep
+	 */
+	private void serveOrFetch(HttpServerRequest request, Resource resource) {
+		if (resource.key.equals(this.lookupKey(request)) && resource.replayable() && resource.retain()) {
+			this.serve(request, resource, null);
+		} else {
+			doReq(request, null, null, null);
+		}
+	}
+
+	/**
+	 * Drops the request's reference on a resource it didn't use
+	 *
+	 * @param resource
+	 *            the resource, may be null
+	 */
+	private static void drop(Resource resource) {
+		if (resource != null) {
+			resource.release();
+		}
+	}
+
+	/**
+	 * The response in flight can't be shared, the waiting requests go to the
+	 * backend on their own
+	 */
+	private void release(Flight flight) {
+		if (flight == null) {
+			return;
+		}
+		this.inflight.remove(flight.key, flight);
+		flight.waiting.forEach((request, timerId) -> {
+			this.vertx.cancelTimer(timerId);
+			doReq(request, null, null, null);
+		});
+		flight.waiting.clear();
+	}
 }
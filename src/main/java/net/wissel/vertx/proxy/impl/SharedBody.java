@@ -0,0 +1,115 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A complete body in the {@link BodyStore}, shared by all cache entries with
+ * the same bytes. It counts the references of its users and leaves the store,
+ * freeing the body, with the last one
+ *
+ * @author swissel
+ *
+ */
+class SharedBody implements CachedBody {
+
+    private final BodyStore     store;
+    private final String        hash;
+    private final CachedBody    body;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    SharedBody(final BodyStore store, final String hash, final CachedBody body) {
+        this.store = store;
+        this.hash = hash;
+        this.body = body;
+    }
+
+    @Override
+    public void append(final Buffer chunk) {
+        throw new UnsupportedOperationException("Shared bodies are complete");
+    }
+
+    @Override
+    public void append(final FileChannel channel, final long position, final int length) {
+        throw new UnsupportedOperationException("Shared bodies are complete");
+    }
+
+    @Override
+    public Buffer buffer() {
+        return this.body.buffer();
+    }
+
+    @Override
+    public Buffer copy() {
+        return this.body.copy();
+    }
+
+    @Override
+    public boolean isDirect() {
+        return this.body.isDirect();
+    }
+
+    @Override
+    public int length() {
+        return this.body.length();
+    }
+
+    @Override
+    public void release() {
+        if (this.references.decrementAndGet() == 0) {
+            this.store.remove(this.hash, this);
+            this.body.release();
+        }
+    }
+
+    @Override
+    public CachedBody retain() {
+        this.references.incrementAndGet();
+        return this;
+    }
+
+    @Override
+    public Buffer slice(final int start, final int end) {
+        return this.body.slice(start, end);
+    }
+
+    /**
+     * Adds a reference unless the body is being freed already
+     *
+     * @return true when the reference got added
+     */
+    boolean tryRetain() {
+        int current;
+        do {
+            current = this.references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!this.references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+}
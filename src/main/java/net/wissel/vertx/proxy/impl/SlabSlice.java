@@ -0,0 +1,80 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A part of a pooled body as a Vert.x {@link Buffer}, for writing cache hits
+ * straight from direct memory. Vert.x wraps every ByteBuf it is given as
+ * unreleasable, so a plain {@link Buffer#buffer(ByteBuf)} of a retained slice
+ * would never give the memory back. This buffer instead hands whoever asks
+ * for its ByteBuf, the HTTP response writing it, a retained duplicate; Netty
+ * releases that once the bytes left, and until then it keeps the pooled chunk
+ * alive even when the cache entry got evicted. Everything else is answered by
+ * a plain view on the same bytes, valid while the body is referenced
+ *
+ * @author swissel
+ *
+ */
+final class SlabSlice implements InvocationHandler {
+
+    private static final ClassLoader LOADER = Buffer.class.getClassLoader();
+    private static final Class<?>[]  TYPES  = { Buffer.class };
+
+    /**
+     * @param slice
+     *            a slice of a pooled buffer, not retained
+     * @return a buffer for writing the slice to a response. Its ByteBuf must be
+     *         released, so don't append it to other buffers
+     */
+    static Buffer of(final ByteBuf slice) {
+        return (Buffer) Proxy.newProxyInstance(SlabSlice.LOADER, SlabSlice.TYPES, new SlabSlice(slice));
+    }
+
+    private final ByteBuf slice;
+    private final Buffer  view;
+
+    private SlabSlice(final ByteBuf slice) {
+        this.slice = slice;
+        this.view = Buffer.buffer(slice);
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if ("getByteBuf".equals(method.getName())) {
+            return this.slice.retainedDuplicate();
+        }
+        try {
+            return method.invoke(this.view, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Cache content written to a file on shutdown and read back on start, so a
+ * restart doesn't begin with a cold cache. A record is the length prefixed
+ * {@link Resource#describe()} Json, including the key, followed by the length
+ * prefixed body. Reading and writing block, callers run them on a worker
+ *
+ * @author swissel
+ *
+ */
+class Snapshot {
+
+    /**
+     * A cache entry with a reference on its body
+     */
+    static final class Record {
+        final String     key;
+        final Resource   resource;
+        final CachedBody body;
+
+        Record(final String key, final Resource resource, final CachedBody body) {
+            this.key = key;
+            this.resource = resource;
+            this.body = body;
+        }
+    }
+
+    private static final int MAGIC = 0x50584331; // PXC1
+
+    private final ResponseCacheImpl cache;
+    private final Path              file;
+
+    Snapshot(final ResponseCacheImpl cache, final Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /**
+     * Reads the records that can still be served, stale ones are skipped
+     *
+     * @param now
+     *            the current time
+     * @return the records, their resources are complete
+     * @throws IOException
+     *             when the file can't be read, a missing file is no error
+     */
+    List<Record> read(final long now) throws IOException {
+        final List<Record> result = new ArrayList<>();
+        if (!Files.exists(this.file)) {
+            return result;
+        }
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if ((size < 4) || (this.readInt(channel) != Snapshot.MAGIC)) {
+                throw new IOException("Not a cache snapshot: " + this.file);
+            }
+            while (channel.position() < size) {
+                final JsonObject header = new JsonObject(Buffer.buffer(this.readBytes(channel, this.readInt(channel))));
+                final int bodyLength = this.readInt(channel);
+                final long bodyStart = channel.position();
+                final Resource resource = Resource.describedBy(this.cache, header);
+                if (resource.servableWhileRevalidating(now) || resource.servableOnError(now)) {
+                    final CachedBody body = CachedBody.create(this.cache.offHeap());
+                    body.append(channel, bodyStart, bodyLength);
+                    result.add(new Record(header.getString("key"), resource.completeWith(body), body));
+                }
+                channel.position(bodyStart + bodyLength);
+            }
+        } catch (final IOException | RuntimeException e) {
+            result.forEach(record -> record.body.release());
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the records to a temporary file that replaces the snapshot once
+     * complete. The body references of all records are released
+     *
+     * @param records
+     *            the records, hottest first
+     * @return number of records written
+     * @throws IOException
+     *             when writing fails
+     */
+    long write(final List<Record> records) throws IOException {
+        final Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.writeInt(channel, Snapshot.MAGIC);
+            for (final Record record : records) {
+                final byte[] header = record.resource.describe().put("key", record.key).toBuffer().getBytes();
+                this.writeInt(channel, header.length);
+                this.writeFully(channel, ByteBuffer.wrap(header));
+                this.writeInt(channel, record.body.length());
+                final ByteBuf body = record.body.buffer().getByteBuf();
+                int done = 0;
+                while (done < body.readableBytes()) {
+                    done += body.getBytes(body.readerIndex() + done, channel, body.readableBytes() - done);
+                }
+            }
+        } finally {
+            records.forEach(record -> record.body.release());
+        }
+        Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return records.size();
+    }
+
+    private byte[] readBytes(final FileChannel channel, final int length) throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data) < 0) {
+                throw new IOException("Truncated cache snapshot: " + this.file);
+            }
+        }
+        return data.array();
+    }
+
+    private int readInt(final FileChannel channel) throws IOException {
+        return ByteBuffer.wrap(this.readBytes(channel, 4)).getInt();
+    }
+
+    private void writeFully(final FileChannel channel, final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void writeInt(final FileChannel channel, final int value) throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(value).flip();
+        this.writeFully(channel, data);
+    }
+
+}
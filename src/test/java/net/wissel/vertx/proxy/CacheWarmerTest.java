@@ -0,0 +1,86 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Picking the URLs to warm the cache with from URL lists and access logs
+ *
+ * @author swissel
+ *
+ */
+public class CacheWarmerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file(final String... lines) throws IOException {
+        final Path result = this.folder.newFile().toPath();
+        Files.write(result, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return result;
+    }
+
+    @Test
+    public void readsAccessLogs() throws IOException {
+        final Path log = this.file(
+                "127.0.0.1 - - [17/Oct/2026:10:00:00 +0000] \"GET /a HTTP/1.1\" 200 512",
+                "127.0.0.1 - - [17/Oct/2026:10:00:01 +0000] \"GET /b?x=1 HTTP/1.1\" 304 0",
+                "127.0.0.1 - - [17/Oct/2026:10:00:02 +0000] \"HEAD /a HTTP/1.0\" 200 0",
+                "127.0.0.1 - - [17/Oct/2026:10:00:03 +0000] \"POST /c HTTP/1.1\" 200 10",
+                "127.0.0.1 - - [17/Oct/2026:10:00:04 +0000] \"GET /d HTTP/1.1\" 404 10",
+                "127.0.0.1 - - [17/Oct/2026:10:00:05 +0000] \"GET /e HTTP/2.0\" 2000 10");
+        assertEquals(Arrays.asList("/a", "/b?x=1"), CacheWarmer.hottest(log, 10));
+    }
+
+    @Test
+    public void readsUrlLists() throws IOException {
+        final Path list = this.file(
+                "# warm these",
+                "/a",
+                "",
+                "  https://host/b  ",
+                "http://host/c d",
+                "not a url",
+                "/a");
+        assertEquals(Arrays.asList("/a", "https://host/b"), CacheWarmer.hottest(list, 10));
+    }
+
+    @Test
+    public void ranksByCountThenFileOrder() throws IOException {
+        final Path list = this.file("/c", "/b", "/a", "/a", "/b", "/d");
+        assertEquals(Arrays.asList("/b", "/a", "/c", "/d"), CacheWarmer.hottest(list, 10));
+        assertEquals(Arrays.asList("/b", "/a"), CacheWarmer.hottest(list, 2));
+        assertEquals(Arrays.asList(), CacheWarmer.hottest(list, 0));
+    }
+
+}
@@ -0,0 +1,207 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * The result stream of a non chunked filter: buffers are filtered one at a
+ * time and in order, whether the filter finishes inline or later on a worker,
+ * and a rejected run fails the stream
+ *
+ * @author swissel
+ *
+ */
+public class AbstractFilterTest {
+
+    /**
+     * Upper cases buffers right away. Buffers starting with "later" finish
+     * when the test completes them, "full" ones get rejected
+     */
+    private static class TestFilter extends AbstractFilter {
+        final Deque<Future<Buffer>> later = new ArrayDeque<>();
+
+        TestFilter() {
+            super(null, false);
+        }
+
+        @Override
+        public void addSubfilters(final Collection<JsonObject> subfilters) {
+            // No subfilters
+        }
+
+        @Override
+        protected Future<Buffer> processBufferResult(final Buffer incomingBuffer) {
+            final String text = incomingBuffer.toString();
+            if (text.startsWith("later")) {
+                final Future<Buffer> result = Future.future();
+                this.later.add(result);
+                return result;
+            }
+            if (text.startsWith("full")) {
+                return Future.failedFuture(new RejectedExecutionException("full"));
+            }
+            return Future.succeededFuture(Buffer.buffer(text.toUpperCase()));
+        }
+    }
+
+    /**
+     * A backend body the test feeds by hand
+     */
+    private static class Source implements ReadStream<Buffer> {
+        Handler<Buffer>    handler;
+        Handler<Void>      endHandler;
+        Handler<Throwable> exceptionHandler;
+        boolean            paused;
+
+        @Override
+        public ReadStream<Buffer> exceptionHandler(final Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> handler(final Handler<Buffer> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> pause() {
+            this.paused = true;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> resume() {
+            this.paused = false;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> fetch(final long amount) {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> endHandler(final Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+
+        void emit(final String chunk) {
+            this.handler.handle(Buffer.buffer(chunk));
+        }
+    }
+
+    private final TestFilter                 filter = new TestFilter();
+    private final Source                     source = new Source();
+    private final List<String>               output = new ArrayList<>();
+    private final AtomicBoolean              ended  = new AtomicBoolean();
+    private final AtomicReference<Throwable> error  = new AtomicReference<>();
+    private ReadStream<Buffer>               result;
+
+    private void open() {
+        this.result = this.filter.apply(this.source).result();
+        this.result.handler(buffer -> this.output.add(buffer.toString()));
+        this.result.endHandler(v -> this.ended.set(true));
+        this.result.exceptionHandler(this.error::set);
+    }
+
+    @Test
+    public void inlineResultsStreamInOrder() {
+        this.open();
+        this.source.emit("a");
+        this.source.emit("b");
+        this.source.endHandler.handle(null);
+        assertEquals(Arrays.asList("A", "B"), this.output);
+        assertTrue(this.ended.get());
+        assertFalse(this.source.paused);
+    }
+
+    @Test
+    public void offloadedResultsKeepTheOrder() {
+        this.open();
+        this.source.emit("later-1");
+        assertTrue(this.source.paused);
+        // Already on its way when the pause came
+        this.source.emit("b");
+        this.source.endHandler.handle(null);
+        assertTrue(this.output.isEmpty());
+        assertFalse(this.ended.get());
+        this.filter.later.poll().complete(Buffer.buffer("X"));
+        assertEquals(Arrays.asList("X", "B"), this.output);
+        assertTrue(this.ended.get());
+        assertFalse(this.source.paused);
+    }
+
+    @Test
+    public void pausedClientStaysPaused() {
+        this.open();
+        this.source.emit("later-1");
+        this.result.pause();
+        this.filter.later.poll().complete(Buffer.buffer("X"));
+        assertEquals(Arrays.asList("X"), this.output);
+        assertTrue(this.source.paused);
+        this.result.resume();
+        assertFalse(this.source.paused);
+    }
+
+    @Test
+    public void rejectionFailsTheStream() {
+        this.open();
+        this.source.emit("a");
+        this.source.emit("full");
+        this.source.emit("b");
+        this.source.endHandler.handle(null);
+        assertEquals(Arrays.asList("A"), this.output);
+        assertTrue(FilterWorker.isRejected(this.error.get()));
+        assertFalse(this.ended.get());
+    }
+
+    @Test
+    public void noStreamWithoutSource() {
+        assertNull(this.filter.apply(null));
+    }
+
+}
@@ -0,0 +1,142 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Rejection when the pool is full and the choice between running a filter
+ * inline or on the pool
+ *
+ * @author swissel
+ *
+ */
+public class FilterWorkerTest {
+
+    private static Vertx vertx;
+
+    @BeforeClass
+    public static void setUp() {
+        FilterWorkerTest.vertx = Vertx.vertx();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        FilterWorkerTest.vertx.close();
+    }
+
+    /**
+     * Runs a filter that does nothing but note its thread and waits for the
+     * result
+     *
+     * @return the thread the filter ran on
+     */
+    private static Thread run(final FilterWorker worker, final String fingerprint, final int bytes)
+            throws Exception {
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        final CompletableFuture<AsyncResult<Void>> done = new CompletableFuture<>();
+        worker.<Void>execute(fingerprint, bytes, fut -> {
+            thread.set(Thread.currentThread());
+            fut.complete();
+        }, done::complete);
+        assertTrue(done.get(5, TimeUnit.SECONDS).succeeded());
+        return thread.get();
+    }
+
+    @Test
+    public void rejectsWhenFull() throws Exception {
+        final FilterWorker worker = new FilterWorker(FilterWorkerTest.vertx, "test.Full",
+                new JsonObject().put("size", 1).put("maxQueue", 0));
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<AsyncResult<Void>> first = new CompletableFuture<>();
+        worker.<Void>execute("f", 100, fut -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            fut.complete();
+        }, first::complete);
+        final AtomicReference<AsyncResult<Void>> second = new AtomicReference<>();
+        worker.<Void>execute("f", 100, fut -> fut.complete(), second::set);
+        // Failed right away, nothing got queued
+        assertTrue(second.get().failed());
+        assertTrue(FilterWorker.isRejected(second.get().cause()));
+        assertEquals(1, worker.stats().getInteger("pending").intValue());
+        release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS).succeeded());
+        assertEquals(0, worker.stats().getInteger("pending").intValue());
+        assertEquals(1L, worker.stats().getLong("rejected").longValue());
+        // Room again
+        run(worker, "f", 100);
+        assertFalse(FilterWorker.isRejected(new IllegalStateException()));
+    }
+
+    @Test
+    public void learnsPerFingerprintWhatRunsInline() throws Exception {
+        final FilterWorker worker = new FilterWorker(FilterWorkerTest.vertx, "test.Inline",
+                new JsonObject().put("inlineMicros", 1000000L).put("maxInlineBytes", 4096));
+        final Thread caller = Thread.currentThread();
+        // Nothing measured yet, the first run goes to the pool
+        assertNotSame(caller, run(worker, "cheap", 1000000));
+        assertSame(caller, run(worker, "cheap", 1000));
+        // Above maxInlineBytes
+        assertNotSame(caller, run(worker, "cheap", 8192));
+        // Another definition of the same class has its own estimate
+        assertNotSame(caller, run(worker, "other", 1000));
+
+        final JsonObject stats = worker.stats();
+        assertEquals(1L, stats.getLong("inline").longValue());
+        assertEquals(3L, stats.getLong("offloaded").longValue());
+        assertEquals(4096, stats.getJsonObject("estimates").getJsonObject("cheap").getInteger("inlineBytes").intValue());
+        assertEquals(4096, stats.getJsonObject("estimates").getJsonObject("other").getInteger("inlineBytes").intValue());
+    }
+
+    @Test
+    public void offloadsEverythingWithoutInlineBudget() throws Exception {
+        final FilterWorker worker = new FilterWorker(FilterWorkerTest.vertx, "test.Offload",
+                new JsonObject().put("inlineMicros", 0L));
+        final Thread caller = Thread.currentThread();
+        run(worker, "f", 1000);
+        assertNotSame(caller, run(worker, "f", 1));
+        assertEquals(0, worker.stats().getJsonObject("estimates").getJsonObject("f").getInteger("inlineBytes")
+                .intValue());
+    }
+
+}
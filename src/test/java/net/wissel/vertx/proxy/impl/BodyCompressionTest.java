@@ -0,0 +1,58 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Accept-Encoding negotiation for cached gzip bodies
+ *
+ * @author swissel
+ *
+ */
+public class BodyCompressionTest {
+
+    @Test
+    public void acceptsGzip() {
+        assertTrue(BodyCompression.acceptsGzip("gzip"));
+        assertTrue(BodyCompression.acceptsGzip("deflate, GZIP;q=0.5, br"));
+        assertTrue(BodyCompression.acceptsGzip("x-gzip"));
+        assertTrue(BodyCompression.acceptsGzip("br, *"));
+    }
+
+    @Test
+    public void refusesGzip() {
+        assertFalse(BodyCompression.acceptsGzip(null));
+        assertFalse(BodyCompression.acceptsGzip(""));
+        assertFalse(BodyCompression.acceptsGzip("identity, br"));
+        assertFalse(BodyCompression.acceptsGzip("gzip;q=0"));
+        assertFalse(BodyCompression.acceptsGzip("gzip;q=nope"));
+        assertFalse(BodyCompression.acceptsGzip("*;q=0"));
+        // An explicit entry wins over the wildcard
+        assertFalse(BodyCompression.acceptsGzip("*, gzip;q=0"));
+        assertTrue(BodyCompression.acceptsGzip("*;q=0, gzip"));
+    }
+
+}
@@ -0,0 +1,135 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Range header parsing and the multipart/byteranges framing
+ *
+ * @author swissel
+ *
+ */
+public class ByteRangesTest {
+
+    private static void assertRange(final long first, final long last, final ByteRanges.Range range) {
+        assertEquals(first, range.first);
+        assertEquals(last, range.last);
+    }
+
+    @Test
+    public void singleRanges() {
+        assertRange(0, 99, ByteRanges.parse("bytes=0-99", 1000).get(0));
+        assertRange(500, 999, ByteRanges.parse("bytes=500-", 1000).get(0));
+        assertRange(900, 999, ByteRanges.parse("bytes=-100", 1000).get(0));
+        // Clipped to the body
+        assertRange(990, 999, ByteRanges.parse("bytes=990-2000", 1000).get(0));
+        assertRange(0, 9, ByteRanges.parse("bytes=-100", 10).get(0));
+        assertEquals(100, ByteRanges.parse("Bytes=0-99", 1000).get(0).length());
+    }
+
+    @Test
+    public void severalRangesKeepRequestOrder() {
+        final List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=500-599, 0-9,,-1", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(500, 599, ranges.get(0));
+        assertRange(0, 9, ranges.get(1));
+        assertRange(999, 999, ranges.get(2));
+    }
+
+    @Test
+    public void unsatisfiable() {
+        assertTrue(ByteRanges.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=0-", 0).isEmpty());
+        assertEquals("bytes */1000", ByteRanges.unsatisfied(1000));
+    }
+
+    @Test
+    public void ignoredHeaders() {
+        assertNull(ByteRanges.parse("items=0-1", 1000));
+        assertNull(ByteRanges.parse("bytes=", 1000));
+        assertNull(ByteRanges.parse("bytes=5", 1000));
+        assertNull(ByteRanges.parse("bytes=9-5", 1000));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000));
+        final StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            many.append(',').append(i).append('-').append(i);
+        }
+        assertNull(ByteRanges.parse(many.toString(), 1000));
+    }
+
+    @Test
+    public void ifRange() {
+        final Date lastModified = ParseUtils.parseHeaderDate("Tue, 15 Nov 1994 08:12:31 GMT");
+        assertTrue(ByteRanges.ifRange("\"v1\"", "\"v1\"", lastModified));
+        assertFalse(ByteRanges.ifRange("\"v2\"", "\"v1\"", lastModified));
+        assertFalse(ByteRanges.ifRange("W/\"v1\"", "W/\"v1\"", lastModified));
+        assertTrue(ByteRanges.ifRange("Tue, 15 Nov 1994 08:12:31 GMT", "\"v1\"", lastModified));
+        assertFalse(ByteRanges.ifRange("Tue, 15 Nov 1994 08:12:32 GMT", "\"v1\"", lastModified));
+        assertFalse(ByteRanges.ifRange("Tue, 15 Nov 1994 08:12:31 GMT", "\"v1\"", null));
+    }
+
+    @Test
+    public void multipart() {
+        final Buffer body = Buffer.buffer("0123456789");
+        final List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=0-1,-3", body.length());
+        final List<Buffer> heads = ByteRanges.partHeads(ranges, body.length(), "text/plain", "XYZ");
+        final Buffer output = Buffer.buffer();
+        for (int i = 0; i < ranges.size(); i++) {
+            final ByteRanges.Range range = ranges.get(i);
+            output.appendBuffer(heads.get(i)).appendBuffer(body.getBuffer((int) range.first, (int) range.last + 1));
+        }
+        output.appendBuffer(ByteRanges.closeDelimiter("XYZ"));
+        assertEquals(String.join("\r\n", Arrays.asList("",
+                "--XYZ",
+                "Content-Type: text/plain",
+                "Content-Range: bytes 0-1/10",
+                "",
+                "01",
+                "--XYZ",
+                "Content-Type: text/plain",
+                "Content-Range: bytes 7-9/10",
+                "",
+                "789",
+                "--XYZ--",
+                "")), output.toString());
+    }
+
+    @Test
+    public void multipartWithoutContentType() {
+        final List<Buffer> heads = ByteRanges.partHeads(ByteRanges.parse("bytes=0-0", 5), 5, null, "b");
+        assertEquals("\r\n--b\r\nContent-Range: bytes 0-0/5\r\n\r\n", heads.get(0).toString());
+    }
+
+}
@@ -0,0 +1,98 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Parsing of Cache-Control and the freshness lifetime derived from it
+ *
+ * @author swissel
+ *
+ */
+public class CacheControlTest {
+
+    @Test
+    public void parsesDirectives() {
+        final CacheControl cc = new CacheControl()
+                .parse("Public, max-age=60, stale-while-revalidate=30, stale-if-error=600");
+        assertTrue(cc.isPublic());
+        assertFalse(cc.isPrivate());
+        assertFalse(cc.isNoStore());
+        assertFalse(cc.isNoCache());
+        assertEquals(60, cc.maxAge());
+        assertEquals(30, cc.staleWhileRevalidate());
+        assertEquals(600, cc.staleIfError());
+    }
+
+    @Test
+    public void absentDirectivesAreMinusOne() {
+        final CacheControl cc = new CacheControl().parse("private, no-store, no-cache");
+        assertTrue(cc.isPrivate());
+        assertTrue(cc.isNoStore());
+        assertTrue(cc.isNoCache());
+        assertEquals(-1, cc.maxAge());
+        assertEquals(-1, cc.staleWhileRevalidate());
+        assertEquals(-1, cc.staleIfError());
+    }
+
+    @Test
+    public void invalidNumbersAreIgnored() {
+        final CacheControl cc = new CacheControl()
+                .parse("max-age=abc, stale-while-revalidate=-5, stale-if-error=99999999999");
+        assertEquals(-1, cc.maxAge());
+        assertEquals(-1, cc.staleWhileRevalidate());
+        assertEquals(-1, cc.staleIfError());
+        // A valid repetition still counts, an invalid one doesn't undo it
+        assertEquals(10, new CacheControl().parse("max-age=10, max-age=x").maxAge());
+    }
+
+    @Test
+    public void parseResetsPreviousState() {
+        final CacheControl cc = new CacheControl().parse("public, max-age=60");
+        cc.parse("no-store");
+        assertFalse(cc.isPublic());
+        assertEquals(-1, cc.maxAge());
+    }
+
+    @Test
+    public void lifetimeFromMaxAge() {
+        final CacheControl cc = new CacheControl().parse("max-age=60");
+        assertEquals(60000L, CacheControl.lifetime(cc, "Tue, 15 Nov 1994 08:12:31 GMT",
+                "Tue, 15 Nov 1994 08:13:31 GMT"));
+        assertEquals(60000L, CacheControl.lifetime(cc, null, null));
+    }
+
+    @Test
+    public void lifetimeFromExpires() {
+        final CacheControl cc = new CacheControl().parse("public");
+        assertEquals(120000L, CacheControl.lifetime(cc, "Tue, 15 Nov 1994 08:12:31 GMT",
+                "Tue, 15 Nov 1994 08:14:31 GMT"));
+        assertEquals(-1L, CacheControl.lifetime(cc, "Tue, 15 Nov 1994 08:12:31 GMT", null));
+        assertEquals(-1L, CacheControl.lifetime(cc, "Tue, 15 Nov 1994 08:12:31 GMT", "0"));
+    }
+
+}
@@ -0,0 +1,108 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * URL normalization and the variant keys derived from Vary
+ *
+ * @author swissel
+ *
+ */
+public class CacheKeysTest {
+
+    private static MultiMap headers(final String... namesAndValues) {
+        final MultiMap result = MultiMap.caseInsensitiveMultiMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.add(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void queryIsLeftAloneByDefault() {
+        final CacheKeys keys = new CacheKeys(new JsonObject());
+        assertEquals("/a?b=2&a=1", keys.normalize("/a?b=2&a=1"));
+        assertEquals("/a", keys.normalize("/a"));
+    }
+
+    @Test
+    public void sortsByNameOnly() {
+        final CacheKeys keys = new CacheKeys(new JsonObject().put("sortQuery", true));
+        assertEquals("/a?a=1&b=2&c", keys.normalize("/a?c&b=2&a=1"));
+        // Repeated names keep their order, the values aren't sorted
+        assertEquals("/a?a=2&a=1&b=0", keys.normalize("/a?b=0&a=2&a=1"));
+    }
+
+    @Test
+    public void dropsConfiguredParams() {
+        final CacheKeys keys = new CacheKeys(new JsonObject().put("dropParams", new JsonArray().add("_")));
+        assertEquals("/a?x=1&y=2", keys.normalize("/a?x=1&_=123&y=2"));
+        assertEquals("/a", keys.normalize("/a?_=123"));
+        assertEquals("/a?x=1", keys.normalize("/a?x=1&&_"));
+    }
+
+    @Test
+    public void varyNames() {
+        assertEquals(Arrays.asList("accept-encoding", "accept-language"),
+                CacheKeys.varyNames(headers("Vary", "Accept-Language, accept-encoding", "Vary", "Accept-Language")));
+        assertEquals(Collections.emptyList(), CacheKeys.varyNames(headers()));
+        assertNull(CacheKeys.varyNames(headers("Vary", "Accept, *")));
+    }
+
+    @Test
+    public void variantKeys() {
+        final CacheKeys keys = new CacheKeys(new JsonObject());
+        final MultiMap request = headers("Accept-Language", "de, en ", "Accept", "text/html");
+        // Nothing known about the URL yet
+        assertEquals("/a", keys.key("/a", request));
+        final String stored = keys.key("/a", request, headers("Vary", "Accept-Language"));
+        assertEquals("/a" + CacheKeys.VARIANT + "accept-language=de,en", stored);
+        assertEquals("/a", CacheKeys.base(stored));
+        // Later lookups use the remembered names, whitespace doesn't matter
+        assertEquals(stored, keys.key("/a", headers("accept-language", "de,en")));
+        assertEquals("/a" + CacheKeys.VARIANT + "accept-language=fr", keys.key("/a", headers("Accept-Language", "fr")));
+        assertEquals("/a" + CacheKeys.VARIANT + "accept-language=", keys.key("/a", headers()));
+    }
+
+    @Test
+    public void varyStarAndNoVary() {
+        final CacheKeys keys = new CacheKeys(new JsonObject());
+        keys.key("/a", headers(), headers("Vary", "Accept"));
+        assertNull(keys.key("/a", headers(), headers("Vary", "*")));
+        // A response without Vary forgets the names again
+        assertEquals("/a", keys.key("/a", headers("Accept", "x"), headers()));
+        assertEquals("/a", keys.key("/a", headers("Accept", "x")));
+    }
+
+}
@@ -0,0 +1,112 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import io.vertx.core.MultiMap;
+
+/**
+ * RFC 7232 precondition evaluation against a cached representation
+ *
+ * @author swissel
+ *
+ */
+public class PreconditionsTest {
+
+    private static final String ETAG          = "\"v1\"";
+    private static final String BEFORE        = "Tue, 15 Nov 1994 08:00:00 GMT";
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 08:12:31 GMT";
+    private static final String AFTER         = "Tue, 15 Nov 1994 09:00:00 GMT";
+
+    private static MultiMap headers(final String... namesAndValues) {
+        final MultiMap result = MultiMap.caseInsensitiveMultiMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.add(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return result;
+    }
+
+    private static int evaluate(final MultiMap headers) {
+        final Date lastModified = ParseUtils.parseHeaderDate(LAST_MODIFIED);
+        return Preconditions.evaluate(headers, ETAG, lastModified);
+    }
+
+    @Test
+    public void noPreconditions() {
+        assertEquals(Preconditions.PROCEED, evaluate(headers()));
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        assertEquals(304, evaluate(headers("If-None-Match", "\"v0\", \"v1\"")));
+        assertEquals(304, evaluate(headers("If-None-Match", "W/\"v1\"")));
+        assertEquals(304, evaluate(headers("If-None-Match", "*")));
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-None-Match", "\"v2\"")));
+        // If-None-Match wins over If-Modified-Since
+        assertEquals(Preconditions.PROCEED,
+                evaluate(headers("If-None-Match", "\"v2\"", "If-Modified-Since", AFTER)));
+    }
+
+    @Test
+    public void ifModifiedSince() {
+        assertEquals(304, evaluate(headers("If-Modified-Since", LAST_MODIFIED)));
+        assertEquals(304, evaluate(headers("If-Modified-Since", AFTER)));
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Modified-Since", BEFORE)));
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Modified-Since", "yesterday")));
+    }
+
+    @Test
+    public void ifMatch() {
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Match", "\"v1\"")));
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Match", "*")));
+        assertEquals(412, evaluate(headers("If-Match", "\"v2\"")));
+        // Strong comparison, a weak tag never matches
+        assertEquals(412, evaluate(headers("If-Match", "W/\"v1\"")));
+        // If-Match wins over If-Unmodified-Since
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Match", "\"v1\"", "If-Unmodified-Since", BEFORE)));
+    }
+
+    @Test
+    public void ifUnmodifiedSince() {
+        assertEquals(412, evaluate(headers("If-Unmodified-Since", BEFORE)));
+        assertEquals(Preconditions.PROCEED, evaluate(headers("If-Unmodified-Since", LAST_MODIFIED)));
+        // A failed precondition comes before the 304
+        assertEquals(412, evaluate(headers("If-Unmodified-Since", BEFORE, "If-None-Match", "\"v1\"")));
+    }
+
+    @Test
+    public void matches() {
+        assertTrue(Preconditions.matches("\"a,b\", \"v1\"", ETAG, false));
+        assertFalse(Preconditions.matches("\"v1", ETAG, true));
+        assertFalse(Preconditions.matches("\"v1\"", null, true));
+        assertTrue(Preconditions.matches("\"v1\"", "W/\"v1\"", true));
+        assertFalse(Preconditions.matches("\"v1\"", "W/\"v1\"", false));
+    }
+
+}
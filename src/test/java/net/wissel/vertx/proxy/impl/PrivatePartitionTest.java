@@ -0,0 +1,96 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Sessions of the private partition share one byte budget, the least
+ * recently active ones go when it is exceeded
+ *
+ * @author swissel
+ *
+ */
+public class PrivatePartitionTest {
+
+    private static Vertx             vertx;
+    private static ResponseCacheImpl cache;
+
+    @BeforeClass
+    public static void setUp() {
+        PrivatePartitionTest.vertx = Vertx.vertx();
+        PrivatePartitionTest.cache = new ResponseCacheImpl(PrivatePartitionTest.vertx,
+                new JsonObject().put("expiryInterval", 0L));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        PrivatePartitionTest.vertx.close();
+    }
+
+    private static String key(final PrivatePartition partition, final String session, final String uri) {
+        return partition.key(MultiMap.caseInsensitiveMultiMap().add("x-session", session), uri);
+    }
+
+    private static Resource resource(final String key, final int bodyBytes) {
+        final CachedBody body = new HeapBody();
+        body.append(Buffer.buffer(new byte[bodyBytes]));
+        return new Resource(PrivatePartitionTest.cache, key, key, 200, "OK", MultiMap.caseInsensitiveMultiMap(),
+                System.currentTimeMillis(), 60000L).completeWith(body).keyed(key);
+    }
+
+    @Test
+    public void partitionStaysWithinItsBudget() {
+        final AtomicInteger released = new AtomicInteger();
+        final PrivatePartition partition = new PrivatePartition(new JsonObject()
+                .put("maxBytes", 10000L)
+                .put("sessionBytes", 5000L)
+                .put("session", new JsonObject().put("header", "x-session")),
+                resource -> released.incrementAndGet());
+        for (int i = 0; i < 6; i++) {
+            final String key = key(partition, "s" + i, "/p");
+            partition.put(key, resource(key, 4000));
+        }
+        final JsonObject stats = partition.stats();
+        assertTrue(stats.getLong("bytes") <= 10000);
+        // Three sessions of more than 4000 bytes don't fit
+        assertTrue(stats.getLong("sessions") <= 2);
+        assertEquals(6 - stats.getLong("entries"), released.get());
+        assertNull(partition.get(key(partition, "s0", "/p")));
+        assertNotNull(partition.get(key(partition, "s5", "/p")));
+    }
+
+}
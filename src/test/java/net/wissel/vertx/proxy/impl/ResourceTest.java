@@ -0,0 +1,292 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * The tee collecting a backend body into a resource and the replay to
+ * clients, including clients joining while the body still streams in
+ *
+ * @author swissel
+ *
+ */
+public class ResourceTest {
+
+    /**
+     * A backend body the test feeds by hand
+     */
+    private static class Source implements ReadStream<Buffer> {
+        Handler<Buffer>    handler;
+        Handler<Void>      endHandler;
+        Handler<Throwable> exceptionHandler;
+
+        @Override
+        public ReadStream<Buffer> exceptionHandler(final Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> handler(final Handler<Buffer> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> pause() {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> resume() {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> fetch(final long amount) {
+            return this;
+        }
+
+        @Override
+        public ReadStream<Buffer> endHandler(final Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+
+        void emit(final String chunk) {
+            this.handler.handle(Buffer.buffer(chunk));
+        }
+    }
+
+    /**
+     * What a client got from a body stream
+     */
+    private static class Client {
+        final Buffer                     body  = Buffer.buffer();
+        final AtomicBoolean              ended = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final ReadStream<Buffer>         stream;
+
+        Client(final ReadStream<Buffer> stream) {
+            this.stream = stream;
+            stream.handler(this.body::appendBuffer);
+            stream.endHandler(v -> this.ended.set(true));
+            stream.exceptionHandler(this.error::set);
+        }
+    }
+
+    private static Vertx vertx;
+
+    @BeforeClass
+    public static void setUp() {
+        ResourceTest.vertx = Vertx.vertx();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ResourceTest.vertx.close();
+    }
+
+    private static ResponseCacheImpl cache(final long maxEntryBytes) {
+        return new ResponseCacheImpl(ResourceTest.vertx, new JsonObject()
+                .put("maxEntryBytes", maxEntryBytes)
+                .put("dedup", false)
+                .put("expiryInterval", 0L));
+    }
+
+    private static Resource resource(final ResponseCacheImpl cache, final String uri) {
+        final MultiMap headers = MultiMap.caseInsensitiveMultiMap().add("Content-Type", "text/plain");
+        return new Resource(cache, uri, uri, 200, "OK", headers, System.currentTimeMillis(), 60000L);
+    }
+
+    /**
+     * Sends a response body and collects it, the response takes over a
+     * reference on its resource
+     */
+    private static Client send(final CachedHttpClientResponse response) {
+        final Client client = new Client(response);
+        response.send();
+        return client;
+    }
+
+    @Test
+    public void teeCollectsAndPublishes() {
+        final ResponseCacheImpl cache = cache(1000);
+        final Resource resource = resource(cache, "/tee");
+        final Source source = new Source();
+        final Client client = new Client(resource.apply(source));
+        source.emit("hello ");
+        assertFalse(resource.isComplete());
+        assertNull(cache.get("/tee"));
+        source.emit("world");
+        source.endHandler.handle(null);
+        assertEquals("hello world", client.body.toString());
+        assertTrue(client.ended.get());
+        assertTrue(resource.isComplete());
+        assertEquals(11, resource.length());
+
+        final Resource cached = cache.get("/tee");
+        assertSame(resource, cached);
+        final Client replay = send(cached.response());
+        assertEquals("hello world", replay.body.toString());
+        assertTrue(replay.ended.get());
+    }
+
+    @Test
+    public void joinedClientGetsTheWholeBody() {
+        final ResponseCacheImpl cache = cache(1000);
+        final Resource resource = resource(cache, "/join");
+        final Source source = new Source();
+        final Client first = new Client(resource.apply(source));
+        source.emit("hello ");
+        // A coalesced request, waiting on the running one
+        assertTrue(resource.retain());
+        final Client joined = send(resource.response());
+        assertEquals("hello ", joined.body.toString());
+        source.emit("world");
+        assertEquals("hello world", joined.body.toString());
+        assertFalse(joined.ended.get());
+        source.endHandler.handle(null);
+        assertTrue(joined.ended.get());
+        assertEquals(first.body, joined.body);
+    }
+
+    @Test
+    public void backendFailureReachesJoinedClients() {
+        final ResponseCacheImpl cache = cache(1000);
+        final Resource resource = resource(cache, "/fail");
+        final Source source = new Source();
+        final Client first = new Client(resource.apply(source));
+        source.emit("hel");
+        assertTrue(resource.retain());
+        final Client joined = send(resource.response());
+        final IOException failure = new IOException("gone");
+        source.exceptionHandler.handle(failure);
+        assertSame(failure, first.error.get());
+        assertSame(failure, joined.error.get());
+        assertFalse(joined.ended.get());
+        assertFalse(resource.replayable());
+        assertNull(cache.get("/fail"));
+        // Nothing left to join
+        assertTrue(resource.retain());
+        final Client late = send(resource.response());
+        assertTrue(late.error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void oversizedBodyIsNotCached() {
+        final ResponseCacheImpl cache = cache(8);
+        final Resource resource = resource(cache, "/big");
+        final AtomicBoolean done = new AtomicBoolean();
+        resource.doneHandler(v -> done.set(true));
+        final Source source = new Source();
+        final Client client = new Client(resource.apply(source));
+        source.emit("123456");
+        assertFalse(done.get());
+        source.emit("789012");
+        // No more subscribers from here on
+        assertTrue(done.get());
+        assertFalse(resource.replayable());
+        source.endHandler.handle(null);
+        assertEquals("123456789012", client.body.toString());
+        assertTrue(client.ended.get());
+        assertNull(cache.get("/big"));
+    }
+
+    @Test
+    public void readsRanges() {
+        final ResponseCacheImpl cache = cache(1000);
+        final Resource resource = resource(cache, "/range");
+        final Source source = new Source();
+        new Client(resource.apply(source));
+        source.emit("0123456789");
+        source.endHandler.handle(null);
+        assertTrue(resource.retain());
+        assertEquals("234", send(resource.read(2, 4)).body.toString());
+        assertTrue(resource.retain());
+        assertEquals("9", send(resource.read(9, 9)).body.toString());
+    }
+
+    @Test
+    public void writtenSliceOutlivesTheBody() {
+        final CachedBody body = CachedBody.create(true);
+        body.append(Buffer.buffer("0123456789"));
+        final Buffer slice = body.slice(2, 5);
+        assertEquals(3, slice.length());
+        assertEquals("234", slice.toString());
+        // What the response writes holds its own reference on the memory
+        final ByteBuf written = slice.getByteBuf();
+        body.release();
+        assertEquals(1, written.refCnt());
+        assertEquals("234", written.toString(StandardCharsets.UTF_8));
+        assertTrue(written.release());
+    }
+
+    @Test
+    public void lastReferenceFreesTheBody() {
+        final Resource resource = resource(cache(1000), "/ref");
+        assertTrue(resource.retain());
+        resource.release();
+        resource.release();
+        assertFalse(resource.retain());
+    }
+
+    @Test
+    public void closedResponseDropsItsReference() {
+        final Resource resource = resource(cache(1000), "/close");
+        final Source source = new Source();
+        new Client(resource.apply(source));
+        source.emit("abc");
+        assertTrue(resource.retain());
+        final Client joined = send(resource.response());
+        ((CachedHttpClientResponse) joined.stream).close();
+        source.emit("def");
+        assertEquals("abc", joined.body.toString());
+        // Only the creator's reference is left
+        resource.release();
+        assertFalse(resource.retain());
+    }
+
+}
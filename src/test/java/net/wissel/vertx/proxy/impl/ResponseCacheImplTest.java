@@ -0,0 +1,138 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The byte budget of the cache: entries weigh their body and metadata, the
+ * cache evicts by weight to stay within <code>maxBytes</code>
+ *
+ * @author swissel
+ *
+ */
+public class ResponseCacheImplTest {
+
+    private static Vertx vertx;
+
+    @BeforeClass
+    public static void setUp() {
+        ResponseCacheImplTest.vertx = Vertx.vertx();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ResponseCacheImplTest.vertx.close();
+    }
+
+    private static ResponseCacheImpl cache(final long maxBytes) {
+        return cache(maxBytes, false);
+    }
+
+    private static ResponseCacheImpl cache(final long maxBytes, final boolean dedup) {
+        return new ResponseCacheImpl(ResponseCacheImplTest.vertx, new JsonObject()
+                .put("maxBytes", maxBytes)
+                .put("maxEntryBytes", maxBytes)
+                .put("dedup", dedup)
+                .put("expiryInterval", 0L));
+    }
+
+    private static Resource resource(final ResponseCacheImpl cache, final String uri, final int bodyBytes) {
+        final byte[] bytes = new byte[bodyBytes];
+        bytes[0] = (byte) uri.hashCode();
+        return resource(cache, uri, bytes);
+    }
+
+    private static Resource resource(final ResponseCacheImpl cache, final String uri, final byte[] bytes) {
+        final CachedBody body = new HeapBody();
+        body.append(Buffer.buffer(bytes));
+        return new Resource(cache, uri, uri, 200, "OK", MultiMap.caseInsensitiveMultiMap(),
+                System.currentTimeMillis(), 60000L).completeWith(body);
+    }
+
+    @Test
+    public void weighsBodiesAndMetadata() {
+        final ResponseCacheImpl cache = cache(100000);
+        final Resource resource = resource(cache, "/a", 3000);
+        assertTrue(resource.weight() > 3000);
+        cache.put("/a", resource);
+        assertEquals(resource.weight(), cache.bytes());
+        assertEquals(1, cache.entries());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        final ResponseCacheImpl cache = cache(10000);
+        for (int i = 0; i < 20; i++) {
+            cache.put("/e" + i, resource(cache, "/e" + i, 2000));
+        }
+        // Each entry weighs more than 2000 bytes, 4 fit at most
+        assertTrue(cache.bytes() <= 10000);
+        assertTrue(cache.entries() <= 4);
+        assertTrue(cache.stats().getJsonObject("evictions").getLong("size") >= 16);
+    }
+
+    @Test
+    public void entryOverTheBudgetIsNotKept() {
+        final ResponseCacheImpl cache = cache(10000);
+        cache.put("/small", resource(cache, "/small", 500));
+        cache.put("/huge", resource(cache, "/huge", 20000));
+        assertNull(cache.get("/huge"));
+        assertTrue(cache.bytes() <= 10000);
+    }
+
+    @Test
+    public void sharedBodyIsChargedOnce() throws InterruptedException {
+        final ResponseCacheImpl cache = cache(10000, true);
+        final byte[] same = new byte[3000];
+        for (int i = 0; i < 5; i++) {
+            cache.put("/s" + i, resource(cache, "/s" + i, same));
+            // Hashing runs on a worker, wait until the entry switched
+            awaitShared(cache, i + 1);
+        }
+        // Five times the body would be over the budget, once is not
+        assertEquals(5, cache.entries());
+        assertEquals(1, (int) cache.stats().getInteger("sharedBodies"));
+        assertEquals(3000L, (long) cache.stats().getLong("sharedBytes"));
+        assertTrue(cache.bytes() < 3500);
+        assertEquals(0, (long) cache.stats().getJsonObject("evictions").getLong("size"));
+    }
+
+    private static void awaitShared(final ResponseCacheImpl cache, final int entries) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((cache.bytes() > (3000 + (entries * 100))) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2018 Salesforce Inc ( http://www.salesforce.com/      *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <swissel@salesforce.com>              *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.vertx.proxy.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Writing cache content to a snapshot file and reading it back
+ *
+ * @author swissel
+ *
+ */
+public class SnapshotTest {
+
+    private static Vertx vertx;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() {
+        SnapshotTest.vertx = Vertx.vertx();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        SnapshotTest.vertx.close();
+    }
+
+    private static Snapshot.Record record(final ResponseCacheImpl cache, final String key, final long timestamp,
+            final String body) {
+        final MultiMap headers = MultiMap.caseInsensitiveMultiMap()
+                .add("Content-Type", "text/plain")
+                .add("Set-Cookie", "a=1")
+                .add("Set-Cookie", "b=2");
+        final CachedBody content = new HeapBody();
+        content.append(Buffer.buffer(body));
+        final Resource resource = new Resource(cache, "http://host/a", "/a", 200, "OK", headers, timestamp, 60000L)
+                .staleFor(1000L, 30000L)
+                .keyed(key)
+                .completeWith(content);
+        return new Snapshot.Record(key, resource, resource.retainBody());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final ResponseCacheImpl cache = new ResponseCacheImpl(SnapshotTest.vertx,
+                new JsonObject().put("expiryInterval", 0L));
+        final Snapshot snapshot = new Snapshot(cache, this.folder.getRoot().toPath().resolve("cache.snap"));
+        final long now = System.currentTimeMillis();
+        assertTrue(snapshot.read(now).isEmpty());
+        assertEquals(3, snapshot.write(Arrays.asList(
+                record(cache, "/a", now, "hot"),
+                record(cache, "/a" + CacheKeys.VARIANT + "accept=x", now - 1000L, ""),
+                // Past max age and both stale windows
+                record(cache, "/old", now - 100000L, "cold"))));
+
+        final List<Snapshot.Record> records = snapshot.read(now);
+        assertEquals(2, records.size());
+        final Snapshot.Record first = records.get(0);
+        assertEquals("/a", first.key);
+        assertEquals("/a", first.resource.key);
+        assertEquals("http://host/a", first.resource.absoluteUri);
+        assertEquals(200, first.resource.statusCode);
+        assertEquals(now, first.resource.timestamp);
+        assertEquals(60000L, first.resource.maxAge);
+        assertEquals(30000L, first.resource.staleIfError);
+        assertEquals(Arrays.asList("a=1", "b=2"), first.resource.headers.getAll("set-cookie"));
+        assertTrue(first.resource.isComplete());
+        assertEquals("hot", first.body.buffer().toString());
+        assertEquals("/a" + CacheKeys.VARIANT + "accept=x", records.get(1).key);
+        assertEquals(0, records.get(1).body.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        final File file = this.folder.newFile("other.snap");
+        Files.write(file.toPath(), "not a snapshot".getBytes("UTF-8"));
+        new Snapshot(null, file.toPath()).read(System.currentTimeMillis());
+    }
+
+}